@@ -0,0 +1,56 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheClient 命中緩存時的開銷, 資料庫回調不應該被調用
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CacheClientBenchmark {
+
+    private static final String REDIS_PREFIX = "bench:shop:";
+    private static final String LOCAL_PREFIX = "bench:local:";
+    private static final String LOGICAL_PREFIX = "bench:logical:";
+
+    private CacheClient cacheClient;
+
+    @Setup
+    public void setUp(RedisState redis) {
+        cacheClient = redis.cacheClient;
+        cacheClient.enableLocalCache(LOCAL_PREFIX, 1000, 10L, TimeUnit.MINUTES);
+        Shop shop = BenchmarkData.newShop();
+        cacheClient.set(REDIS_PREFIX + 1L, shop, 1L, TimeUnit.HOURS);
+        cacheClient.set(LOCAL_PREFIX + 1L, shop, 1L, TimeUnit.HOURS);
+        cacheClient.setWithLogicalExpire(LOGICAL_PREFIX + 1L, shop, 1L, TimeUnit.HOURS);
+    }
+
+    @Benchmark
+    public Shop passThroughHit() {
+        return cacheClient.queryWithPassThrough(REDIS_PREFIX, 1L, Shop.class, this::notCalled, 1L, TimeUnit.HOURS);
+    }
+
+    @Benchmark
+    public Shop passThroughLocalHit() {
+        return cacheClient.queryWithPassThrough(LOCAL_PREFIX, 1L, Shop.class, this::notCalled, 1L, TimeUnit.HOURS);
+    }
+
+    @Benchmark
+    public Shop mutexHit() {
+        return cacheClient.queryWithMutex(REDIS_PREFIX, 1L, Shop.class, this::notCalled, 1L, TimeUnit.HOURS);
+    }
+
+    @Benchmark
+    public Shop logicalExpireHit() {
+        return cacheClient.queryWithLogicalExpire(LOGICAL_PREFIX, 1L, Shop.class, this::notCalled, 1L, TimeUnit.HOURS);
+    }
+
+    private Shop notCalled(Long id) {
+        throw new IllegalStateException("緩存未命中: " + id);
+    }
+}
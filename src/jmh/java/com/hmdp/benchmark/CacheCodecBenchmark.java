@@ -0,0 +1,49 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.codec.CacheCodec;
+import com.hmdp.utils.codec.JsonCacheCodec;
+import com.hmdp.utils.codec.ShopCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CacheCodecBenchmark {
+
+    private final CacheCodec<Shop> jsonCodec = new JsonCacheCodec<>(Shop.class);
+    private final CacheCodec<Shop> binaryCodec = new ShopCodec();
+
+    private Shop shop;
+    private byte[] jsonBytes;
+    private byte[] binaryBytes;
+
+    @Setup
+    public void setUp() {
+        shop = BenchmarkData.newShop();
+        jsonBytes = jsonCodec.encode(shop);
+        binaryBytes = binaryCodec.encode(shop);
+    }
+
+    @Benchmark
+    public byte[] jsonEncode() {
+        return jsonCodec.encode(shop);
+    }
+
+    @Benchmark
+    public Shop jsonDecode() {
+        return jsonCodec.decode(jsonBytes);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return binaryCodec.encode(shop);
+    }
+
+    @Benchmark
+    public Shop binaryDecode() {
+        return binaryCodec.decode(binaryBytes);
+    }
+}
@@ -0,0 +1,45 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.service.impl.BlogServiceImpl;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BlogServiceImpl.queryBlogOfFollow 解析收件箱一頁數據的開銷
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FeedParseBenchmark {
+
+    @Param({"2", "10", "100"})
+    public int pageSize;
+
+    private Set<ZSetOperations.TypedTuple<String>> typedTuples;
+
+    @Setup
+    public void setUp() {
+        typedTuples = new LinkedHashSet<>(pageSize);
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < pageSize; i++) {
+            // 每兩條筆記時間戳相同, 覆蓋 offset 的計算
+            typedTuples.add(new DefaultTypedTuple<>(String.valueOf(1000 + i), (double) (time - i / 2)));
+        }
+    }
+
+    @Benchmark
+    public ScrollResult parseScroll() {
+        List<Long> ids = new ArrayList<>(typedTuples.size());
+        ScrollResult r = BlogServiceImpl.parseScroll(typedTuples, ids);
+        r.setList(ids);
+        return r;
+    }
+}
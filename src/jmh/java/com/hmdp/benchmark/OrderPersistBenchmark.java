@@ -0,0 +1,86 @@
+package com.hmdp.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.redisson.Redisson;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+import org.springframework.data.redis.core.RedisCallback;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_PROCESSED_KEY;
+
+/**
+ * 訂單消費者每批訂單在Redis上的額外開銷: 每個用戶一把Redisson鎖, 對比按消息id去重的兩次 pipeline
+ * <p>
+ * 資料庫部分(原來的 SELECT COUNT 對比 INSERT IGNORE)需要MySQL, 不在這裡測試
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OrderPersistBenchmark {
+
+    @Param({"50"})
+    public int batchSize;
+
+    private RedisState redis;
+    private RedissonClient redissonClient;
+    private long nextRecord;
+
+    @Setup
+    public void setUp(RedisState redis) {
+        this.redis = redis;
+        Config config = new Config();
+        config.useSingleServer().setAddress("redis://127.0.0.1:" + redis.port);
+        redissonClient = Redisson.create(config);
+    }
+
+    @TearDown
+    public void tearDown() {
+        redissonClient.shutdown();
+    }
+
+    @Benchmark
+    public int lockPerUser() {
+        // 原來的做法: 每個用戶 tryLock + unlock
+        List<RLock> locks = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            RLock lock = redissonClient.getLock("lock:order:" + i);
+            if (lock.tryLock()) {
+                locks.add(lock);
+            }
+        }
+        locks.forEach(RLock::unlock);
+        return locks.size();
+    }
+
+    @Benchmark
+    public List<Object> processedGuard() {
+        // 現在的做法: 一次 pipeline 查詢消息是否處理過, 一次 pipeline 記錄
+        byte[] key = SECKILL_ORDER_PROCESSED_KEY.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> recordIds = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            recordIds.add((System.currentTimeMillis() + "-" + nextRecord++).getBytes(StandardCharsets.UTF_8));
+        }
+        List<Object> scores = redis.stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[] recordId : recordIds) {
+                connection.zSetCommands().zScore(key, recordId);
+            }
+            return null;
+        });
+        long now = System.currentTimeMillis();
+        redis.stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[] recordId : recordIds) {
+                connection.zSetCommands().zAdd(key, now, recordId);
+            }
+            connection.zSetCommands().zRemRangeByScore(key, 0, now - 1000);
+            return null;
+        });
+        return scores;
+    }
+}
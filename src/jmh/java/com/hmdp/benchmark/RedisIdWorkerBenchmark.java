@@ -0,0 +1,43 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RedisIdWorkerBenchmark {
+
+    private RedisIdWorker redisIdWorker;
+    private RedisIdWorker segmentIdWorker;
+
+    @Setup
+    public void setUp(RedisState redis) {
+        redisIdWorker = new RedisIdWorker(redis.stringRedisTemplate);
+        segmentIdWorker = new RedisIdWorker(redis.stringRedisTemplate, 1000);
+    }
+
+    @Benchmark
+    public long nextId() {
+        return redisIdWorker.nextId("order");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long nextIdContended() {
+        return redisIdWorker.nextId("order");
+    }
+
+    @Benchmark
+    public long nextIdSegment() {
+        return segmentIdWorker.nextId("order");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long nextIdSegmentContended() {
+        return segmentIdWorker.nextId("order");
+    }
+}
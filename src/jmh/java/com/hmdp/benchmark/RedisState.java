@@ -0,0 +1,60 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.CacheClient;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * 基準測試共用的本地Redis, 每次fork啟動一個, 不依賴外部服務
+ */
+@State(Scope.Benchmark)
+public class RedisState {
+
+    public RedisServer redisServer;
+    public int port;
+    public LettuceConnectionFactory connectionFactory;
+    public RedisMessageListenerContainer listenerContainer;
+    public StringRedisTemplate stringRedisTemplate;
+    public CacheClient cacheClient;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        port = freePort();
+        redisServer = RedisServer.builder().port(port).setting("maxmemory 128M").build();
+        redisServer.start();
+
+        connectionFactory = new LettuceConnectionFactory("127.0.0.1", port);
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+
+        listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(connectionFactory);
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+
+        cacheClient = new CacheClient(stringRedisTemplate, listenerContainer);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        listenerContainer.destroy();
+        connectionFactory.destroy();
+        redisServer.stop();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
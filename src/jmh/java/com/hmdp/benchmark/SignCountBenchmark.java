@@ -0,0 +1,23 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.service.impl.UserServiceImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SignCountBenchmark {
+
+    /**
+     * BITFIELD GET u{dayOfMonth} 0 讀出的簽到記錄: 無簽到, 連續15天, 整月31天
+     */
+    @Param({"0", "32767", "2147483647"})
+    public long signBits;
+
+    @Benchmark
+    public int countContinuousSign() {
+        return UserServiceImpl.countContinuousSign(signBits);
+    }
+}
@@ -0,0 +1,55 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.TokenSessionCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+
+/**
+ * RefreshTokenInterceptor 每個請求的開銷: HGETALL login:token:{token} 以及把Hash轉為UserDTO
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TokenSessionBenchmark {
+
+    private static final String TOKEN_KEY = LOGIN_USER_KEY + "benchmark";
+
+    private final Map<Object, Object> userMap = new HashMap<>();
+    private RedisState redis;
+    private TokenSessionCache tokenSessionCache;
+
+    @Setup
+    public void setUp(RedisState redis) {
+        this.redis = redis;
+        // 與 UserServiceImpl.login 寫入的字段相同, 值都是字串
+        userMap.put("id", "1010");
+        userMap.put("nickName", "user_slxaxy2au9");
+        userMap.put("icon", "/imgs/icons/kawayi.jpg");
+        redis.stringRedisTemplate.opsForHash().putAll(TOKEN_KEY, userMap);
+        tokenSessionCache = new TokenSessionCache(redis.stringRedisTemplate, redis.listenerContainer, 10000, 30, 60);
+    }
+
+    @Benchmark
+    public UserDTO fillBeanWithMap() {
+        return BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public UserDTO loadSession() {
+        Map<Object, Object> entries = redis.stringRedisTemplate.opsForHash().entries(TOKEN_KEY);
+        return BeanUtil.fillBeanWithMap(entries, new UserDTO(), false);
+    }
+
+    @Benchmark
+    public UserDTO cachedSession() {
+        return tokenSessionCache.get("benchmark");
+    }
+}
@@ -2,8 +2,8 @@ package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.TokenSessionCache;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
@@ -14,7 +14,7 @@ public class MvcConfig implements WebMvcConfigurer {
 
     //由spring構建的物件就能依賴注入
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private TokenSessionCache tokenSessionCache;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -25,10 +25,11 @@ public class MvcConfig implements WebMvcConfigurer {
                  "/voucher/**",
                  "/shop-type/**",
                  "/blog/hot",
+                 "/blog/hot/scroll",
                  "/user/code",
                  "/user/login"
                ).order(1);
        //攔截所有請求刷新token, order為0先執行
-        registry.addInterceptor( new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+        registry.addInterceptor( new RefreshTokenInterceptor(tokenSessionCache)).addPathPatterns("/**").order(0);
     }
 }
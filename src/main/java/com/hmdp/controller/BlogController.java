@@ -57,6 +57,13 @@ public class BlogController {
         return blogService.queryHotBlog(current);
     }
 
+    @GetMapping("/hot/scroll")
+    public Result queryHotBlogScroll(
+            @RequestParam(value = "lastScore", required = false) Double max,
+            @RequestParam(value = "offset", defaultValue = "0") Integer offset) {
+        return blogService.queryHotBlogScroll(max, offset);
+    }
+
     @GetMapping("/{id}")
     public Result queryBlogById(@PathVariable("id") Long id){
         return blogService.queryBlogById(id);
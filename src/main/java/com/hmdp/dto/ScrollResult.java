@@ -8,5 +8,6 @@ import java.util.List;
 public class ScrollResult {
     private List<?> list;
     private Long minTime;
+    private Double minScore;
     private Integer offset;
 }
@@ -0,0 +1,47 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 店鋪類型的不可變快照, 包含已經序列化好的響應和對應的ETag
+ */
+@Getter
+public class ShopTypeSnapshot {
+    /**
+     * Redis中的版本號, 不一致時重新載入
+     */
+    private final long version;
+    private final List<ShopType> types;
+    private final byte[] body;
+    private final String etag;
+
+    public ShopTypeSnapshot(long version, List<ShopType> types, byte[] body, String etag) {
+        this.version = version;
+        this.types = Collections.unmodifiableList(types);
+        this.body = body;
+        this.etag = etag;
+    }
+
+    /**
+     * 判斷 If-None-Match 是否匹配當前版本, GET請求使用弱比較
+     */
+    public boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if ("*".equals(tag) || etag.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
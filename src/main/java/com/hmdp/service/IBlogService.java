@@ -16,6 +16,8 @@ public interface IBlogService extends IService<Blog> {
 
     Result queryHotBlog(Integer current);
 
+    Result queryHotBlogScroll(Double max, Integer offset);
+
     Result queryBlogById(Long id);
 
     Result likeBlog(Long id);
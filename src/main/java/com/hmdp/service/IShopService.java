@@ -18,5 +18,9 @@ public interface IShopService extends IService<Shop> {
 
     Result update(Shop shop);
 
-    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y, Double lastDistance, Long lastId);
+
+    Result queryShopByName(String name, Integer current);
+
+    Result suggestShopName(String prefix);
 }
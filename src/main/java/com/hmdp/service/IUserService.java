@@ -3,9 +3,11 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.List;
 
 /**
  * <p>
@@ -21,7 +23,14 @@ public interface IUserService extends IService<User> {
 
     Result login(LoginFormDTO loginForm, HttpSession session);
 
+    Result logout(String token);
+
     Result sign();
 
     Result signCount();
+
+    /**
+     * 按id批量查詢用戶, 優先從緩存讀取, 結果和ids的順序相同
+     */
+    List<UserDTO> queryUserDTOs(List<Long> ids);
 }
@@ -0,0 +1,98 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.User;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKE_COUNT_KEY;
+
+/**
+ * 批量填充筆記的作者信息、實時點讚數和點讚狀態
+ * <p>
+ * 一頁N篇筆記原本需要N次查詢用戶和N次 ZSCORE, 現在只需要一次 IN 查詢和一次 pipeline
+ * </p>
+ */
+@Slf4j
+@Component
+public class BlogAssembler {
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    public void assemble(Blog blog) {
+        assemble(Collections.singletonList(blog));
+    }
+
+    public void assemble(List<Blog> blogs) {
+        if (blogs == null || blogs.isEmpty()) {
+            return;
+        }
+        // 1.查詢blog有關的用戶
+        fillUsers(blogs);
+        // 2.查詢blog的點讚數, 以及是否被點讚
+        fillLikes(blogs);
+    }
+
+    private void fillUsers(List<Blog> blogs) {
+        // 1.1.一次 IN 查詢所有作者
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, User> users = userService.listByIds(userIds).stream()
+                .collect(Collectors.toMap(User::getId, Function.identity()));
+        // 1.2.填充作者信息
+        for (Blog blog : blogs) {
+            User user = users.get(blog.getUserId());
+            if (user == null) {
+                log.warn("筆記作者不存在, blogId: {}, userId: {}", blog.getId(), blog.getUserId());
+                continue;
+            }
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        }
+    }
+
+    private void fillLikes(List<Blog> blogs) {
+        // 2.1.獲取登入用戶, 未登入無須查詢是否點讚
+        UserDTO user = UserHolder.getUser();
+        byte[] member = user == null ? null : user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        // 2.2.一次 pipeline 查詢所有筆記的實時點讚數, 以及是否被當前用戶點讚
+        byte[] countKey = BLOG_LIKE_COUNT_KEY.getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                connection.hashCommands().hGet(countKey, blog.getId().toString().getBytes(StandardCharsets.UTF_8));
+                if (member != null) {
+                    byte[] key = (BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8);
+                    connection.zSetCommands().zScore(key, member);
+                }
+            }
+            return null;
+        });
+        int step = member == null ? 1 : 2;
+        for (int i = 0; i < blogs.size(); i++) {
+            Blog blog = blogs.get(i);
+            // 點讚數以Redis為準, 資料庫的值可能還沒有同步
+            Object liked = results.get(i * step);
+            if (liked != null) {
+                blog.setLiked(Integer.valueOf((String) liked));
+            }
+            if (member != null) {
+                blog.setIsLike(results.get(i * step + 1) != null);
+            }
+        }
+    }
+}
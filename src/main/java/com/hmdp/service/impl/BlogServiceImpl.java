@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
@@ -9,28 +8,42 @@ import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -40,6 +53,7 @@ import static com.hmdp.utils.RedisConstants.FEED_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
@@ -50,80 +64,318 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private IFollowService followService;
+    private FeedFanout feedFanout;
+
+    @Resource
+    private BlogAssembler blogAssembler;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    private static final DefaultRedisScript<Long> HOT_REBUILD_SCRIPT;
+    static {
+        HOT_REBUILD_SCRIPT = new DefaultRedisScript<>();
+        HOT_REBUILD_SCRIPT.setLocation(new ClassPathResource("blog_hot_rebuild.lua"));
+        HOT_REBUILD_SCRIPT.setResultType(Long.class);
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final int LIKE_FLUSH_BATCH_SIZE = 500;
+    private static final int HOT_REBUILD_BATCH_SIZE = 1000;
+
+    // 點讚數同步到資料庫的間隔, 單位秒
+    @Value("${hmdp.blog.like-flush-interval:5}")
+    private long likeFlushInterval;
+
+    private final ScheduledExecutorService likeFlushExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init(){
+        // 啟動時立即執行一次, 處理上次沒有同步完的點讚數
+        likeFlushExecutor.scheduleWithFixedDelay(this::flushLikes, 0, likeFlushInterval, TimeUnit.SECONDS);
+        // 排行榜不存在時在後台重建, 已經存在則保留, 不覆蓋其中的點讚和新筆記
+        likeFlushExecutor.execute(() -> {
+            if(!Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_HOT_KEY))){
+                rebuildHotRank();
+            }
+        });
+    }
+
+    @PreDestroy
+    private void destroy(){
+        likeFlushExecutor.shutdown();
+        // 停機前再同步一次
+        flushLikes();
+    }
 
     @Override
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 1.從排行榜按名次分頁 ZREVRANGE blog:hot start end
+        long start = (long) (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        Set<String> members = stringRedisTemplate.opsForZSet()
+                .reverseRange(BLOG_HOT_KEY, start, start + SystemConstants.MAX_PAGE_SIZE - 1);
+        List<Blog> records;
+        if(members == null || members.isEmpty()){
+            // 排行榜還沒有建立, 退回資料庫排序
+            if(!Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_HOT_KEY))){
+                records = query()
+                        .orderByDesc("liked")
+                        .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE))
+                        .getRecords();
+            }else{
+                records = Collections.emptyList();
+            }
+        }else{
+            // 2.按主鍵查詢筆記, 保持排行榜的順序
+            records = listInOrder(members.stream().map(Long::valueOf).collect(Collectors.toList()));
+        }
+        // 3.批量查詢用戶和點讚狀態
+        blogAssembler.assemble(records);
         return Result.ok(records);
     }
 
+    @Override
+    public Result queryHotBlogScroll(Double max, Integer offset) {
+        // 1.按分數滾動分頁 ZREVRANGEBYSCORE blog:hot max -inf WITHSCORES LIMIT offset count
+        double maxScore = max == null ? Double.POSITIVE_INFINITY : max;
+        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
+                .reverseRangeByScoreWithScores(BLOG_HOT_KEY, Double.NEGATIVE_INFINITY, maxScore,
+                        offset, SystemConstants.MAX_PAGE_SIZE);
+        if(typedTuples == null || typedTuples.isEmpty()){
+            return Result.ok();
+        }
+        // 2.解析數據: blogId, minScore, offset
+        List<Long> ids = new ArrayList<>(typedTuples.size());
+        double minScore = 0;
+        int os = 1;
+        for(ZSetOperations.TypedTuple<String> tuple : typedTuples){
+            ids.add(Long.valueOf(tuple.getValue()));
+            double score = tuple.getScore();
+            if(score == minScore){
+                os++;
+            }else{
+                minScore = score;
+                os = 1;
+            }
+        }
+        // 和上一頁最小分數相同, offset需要累加
+        if(max != null && minScore == max){
+            os += offset;
+        }
+        // 3.查詢筆記並填充
+        List<Blog> blogs = listInOrder(ids);
+        blogAssembler.assemble(blogs);
+        // 4.封裝並返回
+        ScrollResult r = new ScrollResult();
+        r.setList(blogs);
+        r.setMinScore(minScore);
+        r.setOffset(os);
+        return Result.ok(r);
+    }
+
+    private List<Blog> listInOrder(List<Long> ids) {
+        String idStr = StrUtil.join(",", ids);
+        return query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+    }
+
+    /**
+     * 熱度分數: 點讚數加上發佈時間帶來的加分, 越新的筆記加分越多, 點讚只需要 ZINCRBY
+     */
+    public static double hotScore(int liked, LocalDateTime createTime) {
+        long createSecond = createTime.toEpochSecond(ZoneOffset.UTC);
+        return liked + (double) createSecond / BLOG_HOT_DECAY_SECONDS;
+    }
+
+    /**
+     * 從資料庫重建熱門排行榜, 每批筆記用一個腳本直接寫入排行榜, 重建期間排行榜一直可用;
+     * 腳本中讀取當時的點讚數, 重建期間的點讚和取消點讚不會被覆蓋; 最後刪除資料庫中已經不存在的筆記
+     */
+    public void rebuildHotRank() {
+        RLock lock = redissonClient.getLock(LOCK_BLOG_HOT_REBUILD_KEY);
+        if(!lock.tryLock()){
+            // 其他節點正在重建
+            return;
+        }
+        String seenKey = BLOG_HOT_KEY + ":rebuild";
+        List<String> keys = Arrays.asList(BLOG_HOT_KEY, BLOG_LIKE_COUNT_KEY, seenKey);
+        try {
+            stringRedisTemplate.delete(seenKey);
+            long lastId = 0;
+            int total = 0;
+            while (true) {
+                // 1.按主鍵分批讀取, 不用 OFFSET
+                List<Blog> blogs = query().select("id", "liked", "create_time")
+                        .gt("id", lastId).orderByAsc("id")
+                        .last("LIMIT " + HOT_REBUILD_BATCH_SIZE).list();
+                if(blogs.isEmpty()){
+                    break;
+                }
+                lastId = blogs.get(blogs.size() - 1).getId();
+                // 2.每篇筆記: id, 資料庫點讚數, 發佈時間加分
+                List<String> args = new ArrayList<>(blogs.size() * 3);
+                for (Blog blog : blogs) {
+                    LocalDateTime createTime = blog.getCreateTime() == null ? LocalDateTime.now() : blog.getCreateTime();
+                    args.add(blog.getId().toString());
+                    args.add(String.valueOf(blog.getLiked() == null ? 0 : blog.getLiked()));
+                    args.add(String.valueOf(hotScore(0, createTime)));
+                }
+                // 3.一次腳本寫入一批
+                stringRedisTemplate.execute(HOT_REBUILD_SCRIPT, keys, args.toArray());
+                total += blogs.size();
+            }
+            // 4.刪除資料庫中已經不存在的筆記
+            int removed = removeDeletedFromHotRank(seenKey, lastId);
+            log.info("熱門筆記排行榜重建完成, 共 {} 篇, 刪除 {} 篇", total, removed);
+        } catch (Exception e) {
+            log.error("重建熱門筆記排行榜異常", e);
+        } finally {
+            stringRedisTemplate.delete(seenKey);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 刪除排行榜中本次重建沒有讀到的筆記; 只處理id不大於最後讀到的id的,
+     * 重建之後才發佈的筆記id更大, 不會被誤刪
+     * @return 刪除的數量
+     */
+    private int removeDeletedFromHotRank(String seenKey, long lastId) {
+        List<String> candidates = new ArrayList<>();
+        ScanOptions options = ScanOptions.scanOptions().count(HOT_REBUILD_BATCH_SIZE).build();
+        try (Cursor<ZSetOperations.TypedTuple<String>> cursor = stringRedisTemplate.opsForZSet().scan(BLOG_HOT_KEY, options)) {
+            while (cursor.hasNext()) {
+                String member = cursor.next().getValue();
+                if (member != null && Long.parseLong(member) <= lastId) {
+                    candidates.add(member);
+                }
+            }
+        }
+        int removed = 0;
+        for (int from = 0; from < candidates.size(); from += HOT_REBUILD_BATCH_SIZE) {
+            List<String> batch = candidates.subList(from, Math.min(from + HOT_REBUILD_BATCH_SIZE, candidates.size()));
+            // 一次 pipeline 判斷是否讀到
+            List<Object> seen = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String member : batch) {
+                    connection.setCommands().sIsMember(seenKey.getBytes(StandardCharsets.UTF_8), member.getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+            List<Object> deleted = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                if (!Boolean.TRUE.equals(seen.get(i))) {
+                    deleted.add(batch.get(i));
+                }
+            }
+            if (!deleted.isEmpty()) {
+                stringRedisTemplate.opsForZSet().remove(BLOG_HOT_KEY, deleted.toArray());
+                removed += deleted.size();
+            }
+        }
+        return removed;
+    }
+
     @Override
     public Result queryBlogById(Long id) {
+        // 0.布隆過濾器判斷筆記一定不存在, 不查詢資料庫
+        if(!idBloomFilters.mightContainBlog(id)){
+            return Result.fail("筆記不存在");
+        }
         // 1.查詢blog
         Blog blog = getById(id);
         if(blog == null){
             return Result.fail("筆記不存在");
         }
-        // 2.查詢blog有關的用戶
-        queryBlogUser(blog);
-        // 3.查詢blog是否被點讚
-        isBlogLiked(blog);
+        // 2.查詢blog有關的用戶, 以及是否被點讚
+        blogAssembler.assemble(blog);
         return Result.ok(blog);
     }
 
-    private void isBlogLiked(Blog blog) {
-        // 1.獲取登入用戶
-        UserDTO user = UserHolder.getUser();
-        if(user == null){
-            // 用戶尚未登入, 無須查詢是否點讚
-            return;
-        }
-        Long userId = user.getId();
-        // 2.判斷當前登入用戶是否已經點讚
-        String key = BLOG_LIKED_KEY + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score != null);
-    }
-
     @Override
     public Result likeBlog(Long id) {
         // 1.獲取登入用戶
         Long userId = UserHolder.getUser().getId();
-        // 2.判斷當前登入用戶是否已經點讚
-        String key = BLOG_LIKED_KEY + id;
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        if(score == null){
-            // 3.如果未點讚, 可以點讚
-            // 3.1.數據庫點讚數 + 1
-            boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
-            // 3.2.保存用戶到Redis的set集合 zadd key value score
-            if(isSuccess){
-                // 第三個參數是分數 使用時間戳
-                stringRedisTemplate.opsForZSet().add(key, userId.toString(),System.currentTimeMillis());
-            }
-        }else{
-            // 4.如果已點讚, 取消點讚
-            // 4.1.數據庫點讚數-1
-            boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
-            // 4.2.把用戶從Redis的set集合移除
-            if(isSuccess){
-                stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+        // 1.1.布隆過濾器判斷筆記一定不存在
+        if(!idBloomFilters.mightContainBlog(id)){
+            return Result.fail("筆記不存在");
+        }
+        // 2.執行lua腳本, 點讚或取消點讚, 同時更新Redis中的點讚數
+        Long result = executeLike(id, userId);
+        if(result == -1){
+            // 2.1.點讚數還沒有初始化, 從資料庫載入
+            Blog blog = getById(id);
+            if(blog == null){
+                return Result.fail("筆記不存在");
             }
+            int liked = blog.getLiked() == null ? 0 : blog.getLiked();
+            stringRedisTemplate.opsForHash().putIfAbsent(BLOG_LIKE_COUNT_KEY, id.toString(), String.valueOf(liked));
+            executeLike(id, userId);
         }
+        // 3.點讚數由後台任務批量寫回資料庫
         return Result.ok();
     }
 
+    private Long executeLike(Long id, Long userId) {
+        return stringRedisTemplate.execute(
+                LIKE_SCRIPT,
+                Arrays.asList(BLOG_LIKED_KEY + id, BLOG_LIKE_COUNT_KEY, BLOG_LIKE_DIRTY_KEY, BLOG_HOT_KEY),
+                id.toString(), userId.toString(), String.valueOf(System.currentTimeMillis())
+        );
+    }
+
+    /**
+     * 把Redis中變化過的點讚數批量寫回 tb_blog.liked
+     * <p>
+     * 寫入的是點讚數本身而不是增量, 同步中斷後重做一次結果也相同
+     * </p>
+     */
+    public void flushLikes() {
+        RLock lock = redissonClient.getLock(LOCK_BLOG_LIKE_FLUSH_KEY);
+        if(!lock.tryLock()){
+            // 其他節點正在同步
+            return;
+        }
+        try {
+            // 1.把待同步的集合改名, 之後的點讚寫入新的集合; 如果上次同步中斷, 先處理上次留下的
+            if(!Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_LIKE_FLUSHING_KEY))){
+                if(!Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_LIKE_DIRTY_KEY))){
+                    return;
+                }
+                stringRedisTemplate.rename(BLOG_LIKE_DIRTY_KEY, BLOG_LIKE_FLUSHING_KEY);
+            }
+            Set<String> members = stringRedisTemplate.opsForSet().members(BLOG_LIKE_FLUSHING_KEY);
+            List<String> ids = members == null ? Collections.emptyList() : new ArrayList<>(members);
+            // 2.分批讀取點讚數並寫入資料庫
+            for (int from = 0; from < ids.size(); from += LIKE_FLUSH_BATCH_SIZE) {
+                List<Object> fields = new ArrayList<>(ids.subList(from, Math.min(from + LIKE_FLUSH_BATCH_SIZE, ids.size())));
+                List<Object> counts = stringRedisTemplate.opsForHash().multiGet(BLOG_LIKE_COUNT_KEY, fields);
+                List<Blog> blogs = new ArrayList<>(fields.size());
+                for (int i = 0; i < fields.size(); i++) {
+                    if(counts.get(i) == null){
+                        continue;
+                    }
+                    blogs.add(new Blog()
+                            .setId(Long.valueOf((String) fields.get(i)))
+                            .setLiked(Integer.valueOf((String) counts.get(i))));
+                }
+                if(!blogs.isEmpty()){
+                    getBaseMapper().updateLikedBatch(blogs);
+                }
+            }
+            // 3.全部寫入成功後才刪除
+            stringRedisTemplate.delete(BLOG_LIKE_FLUSHING_KEY);
+        } catch (Exception e) {
+            log.error("同步點讚數異常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public Result queryBlogLikes(Long id) {
         String key = BLOG_LIKED_KEY + id;
@@ -134,13 +386,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         // 2.解析出其中的用戶id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);
-        // 3.根據用戶id查詢用戶 WHERE id IN( 5 , 1 ) ORDER BY FIELD(id, 5, 1)
-        List<UserDTO> userDTOs = userService.query()
-                .in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        // 3.根據用戶id查詢用戶, 一次 MGET, 未命中的一次 IN 查詢, 保持點讚的順序
+        List<UserDTO> userDTOs = userService.queryUserDTOs(ids);
         // 4.返回
         return Result.ok(userDTOs);
     }
@@ -152,16 +399,17 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         blog.setUserId(user.getId());
         // 2.保存探店筆記
         boolean isSuccess = save(blog);
-        // 3.查詢筆記作者的所有粉絲 select * from tb_from where follow_user_id = ?
-        List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
-        // 4.推送筆記id給所有粉絲
-        for(Follow follow : follows){
-            // 4.1獲取粉絲id
-            Long userId = follow.getUserId();
-            // 4.2推送
-            String key = "feed:" + userId;
-            stringRedisTemplate.opsForZSet().add(key, blog.getId().toString(), System.currentTimeMillis());
+        if(!isSuccess){
+            // 沒有id, 不能加入布隆過濾器和排行榜
+            return Result.fail("新增筆記失敗!");
         }
+        // 2.1.加入布隆過濾器
+        idBloomFilters.addBlog(blog.getId());
+        // 2.2.加入熱門排行榜
+        LocalDateTime createTime = blog.getCreateTime() == null ? LocalDateTime.now() : blog.getCreateTime();
+        stringRedisTemplate.opsForZSet().add(BLOG_HOT_KEY, blog.getId().toString(), hotScore(0, createTime));
+        // 3.寫入發件箱, 在後台推送給活躍粉絲
+        feedFanout.publish(user.getId(), blog.getId(), System.currentTimeMillis());
         // 4.返回id
         return Result.ok(blog.getId());
     }
@@ -170,16 +418,35 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogOfFollow(Long max, Integer offset) {
         // 1.獲取當前用戶
         Long userId = UserHolder.getUser().getId();
-        // 2.查詢收件箱 ZREVRANGEBYSCORE key Max Min LIMIT offset count
-        String key = FEED_KEY+ userId;
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
-                .reverseRangeByScoreWithScores(key, 0, max, offset, 2);
+        // 2.查詢收件箱, 合併關注的大V的發件箱
+        Set<ZSetOperations.TypedTuple<String>> typedTuples = feedFanout.read(userId, max, offset, 2);
         // 3.翻空判斷
         if(typedTuples == null || typedTuples.isEmpty()){
             return Result.ok();
         }
         // 4.解析數據: blogId, minTime(時間戳), offset
         List<Long>ids = new ArrayList<>(typedTuples.size());
+        ScrollResult r = parseScroll(typedTuples, ids);
+        // 5.根據id查詢blog
+        String idStr = StrUtil.join(",", ids);
+        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+
+        // 5.1.批量查詢blog有關的用戶, 以及是否被點讚
+        blogAssembler.assemble(blogs);
+
+        // 6.封裝並返回
+        r.setList(blogs);
+
+        return Result.ok(r);
+    }
+
+    /**
+     * 解析收件箱的一頁數據
+     * @param typedTuples 按分數(時間戳)倒序的 blogId
+     * @param ids 解析出的 blogId 會加入這個集合
+     * @return 下一頁的 minTime 和 offset
+     */
+    public static ScrollResult parseScroll(Set<ZSetOperations.TypedTuple<String>> typedTuples, List<Long> ids) {
         long minTime = 0;
         int os = 1;
         for(ZSetOperations.TypedTuple<String> tuple:typedTuples){ // 5 4 4 2 2
@@ -194,31 +461,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os=1;
             }
         }
-        // 5.根據id查詢blog
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-
-        for (Blog blog : blogs) {
-            // 2.查詢blog有關的用戶
-            queryBlogUser(blog);
-            // 3.查詢blog是否被點讚
-            isBlogLiked(blog);
-        }
-
-        // 6.封裝並返回
         ScrollResult r = new ScrollResult();
-        r.setList(blogs);
         r.setOffset(os);
         r.setMinTime(minTime);
-
-        return Result.ok(r);
-    }
-
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+        return r;
     }
 
 }
@@ -0,0 +1,335 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.Follow;
+import com.hmdp.service.IFollowService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 關注推送的推拉結合
+ * <p>
+ * 每篇筆記都寫入作者的發件箱, 並寫入推送隊列 stream.feed; 粉絲少的作者在後台按批 pipeline 推送到活躍粉絲的收件箱,
+ * 推送完成後才確認消息, 重啟後從 pending-list 繼續;
+ * 粉絲多的作者(大V)不推送, 粉絲讀取時從大V的發件箱拉取再和收件箱合併。
+ * 不活躍的粉絲不推送, 回來讀取時從關注作者的發件箱補齊收件箱。
+ * 作者是否為大V在發佈、被關注和取關時重新計算。
+ * </p>
+ */
+@Slf4j
+@Component
+public class FeedFanout {
+
+    private static final int FOLLOWER_BATCH_SIZE = 500;
+    private static final String GROUP_NAME = "g1";
+    private static final String CONSUMER_NAME = "c1";
+    private static final int READ_BATCH_SIZE = 50;
+    // 推送失敗的消息留在 pending-list, 每隔一段時間重試
+    private static final long PENDING_RETRY_MILLIS = 30_000L;
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 粉絲數達到這個值的作者只寫發件箱, 由粉絲讀取時拉取
+    @Value("${hmdp.feed.push-threshold:5000}")
+    private int pushThreshold;
+
+    // 收件箱和發件箱保留的最新筆記數
+    @Value("${hmdp.feed.inbox-cap:1000}")
+    private int inboxCap;
+
+    // 多少天內讀取過關注推送的用戶才算活躍
+    @Value("${hmdp.feed.active-days:7}")
+    private long activeDays;
+
+    // 推送線程數和排隊上限, 排隊滿了由讀取隊列的線程自己推送, 讀取隨之變慢
+    @Value("${hmdp.feed.fanout-threads:2}")
+    private int fanoutThreads;
+
+    @Value("${hmdp.feed.fanout-queue-capacity:1000}")
+    private int fanoutQueueCapacity;
+
+    private ExecutorService fanoutExecutor;
+
+    private final ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+
+    @PostConstruct
+    private void init() {
+        fanoutExecutor = new ThreadPoolExecutor(fanoutThreads, fanoutThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(fanoutQueueCapacity), new ThreadPoolExecutor.CallerRunsPolicy());
+        createGroup();
+        readExecutor.execute(this::readStream);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        readExecutor.shutdownNow();
+        fanoutExecutor.shutdown();
+    }
+
+    /**
+     * 發佈筆記: 同步寫入發件箱和推送隊列, 推送在後台執行
+     */
+    public void publish(Long authorId, Long blogId, long timestamp) {
+        // 1.寫入作者的發件箱, 並裁剪
+        String outboxKey = FEED_OUTBOX_KEY + authorId;
+        stringRedisTemplate.opsForZSet().add(outboxKey, blogId.toString(), timestamp);
+        stringRedisTemplate.opsForZSet().removeRange(outboxKey, 0, -inboxCap - 1);
+        // 2.寫入推送隊列, 宕機或者重新部署後仍然會推送 XADD stream.feed * authorId a blogId b timestamp t
+        Map<String, String> message = new HashMap<>(4);
+        message.put("authorId", authorId.toString());
+        message.put("blogId", blogId.toString());
+        message.put("timestamp", String.valueOf(timestamp));
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(FEED_STREAM).ofMap(message));
+    }
+
+    private void createGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(FEED_STREAM.getBytes(StandardCharsets.UTF_8), GROUP_NAME, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP: 已經創建
+            log.debug("推送隊列的消費者組已存在");
+        }
+    }
+
+    private void readStream() {
+        long nextPendingRetry = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // 1.先處理 pending-list: 啟動時是上次沒有推送完的, 之後是推送失敗的
+                long now = System.currentTimeMillis();
+                if (now >= nextPendingRetry) {
+                    nextPendingRetry = now + PENDING_RETRY_MILLIS;
+                    dispatch(ReadOffset.from("0"), null);
+                }
+                // 2.讀取新消息 XREADGROUP GROUP g1 c1 COUNT 50 BLOCK 2000 STREAMS stream.feed >
+                dispatch(ReadOffset.lastConsumed(), Duration.ofSeconds(2));
+            } catch (Exception e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                log.error("讀取推送隊列異常", e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void dispatch(ReadOffset offset, Duration block) {
+        StreamReadOptions options = StreamReadOptions.empty().count(READ_BATCH_SIZE);
+        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                Consumer.from(GROUP_NAME, CONSUMER_NAME),
+                block == null ? options : options.block(block),
+                StreamOffset.create(FEED_STREAM, offset));
+        if (list == null) {
+            return;
+        }
+        // 推送線程都在忙並且排隊已滿時, 在當前線程推送
+        list.forEach(record -> fanoutExecutor.execute(() -> handle(record)));
+    }
+
+    private void handle(MapRecord<String, Object, Object> record) {
+        Map<Object, Object> value = record.getValue();
+        Long authorId;
+        Long blogId;
+        long timestamp;
+        try {
+            authorId = Long.valueOf((String) value.get("authorId"));
+            blogId = Long.valueOf((String) value.get("blogId"));
+            timestamp = Long.parseLong((String) value.get("timestamp"));
+        } catch (Exception e) {
+            // 格式錯誤的消息重試也不會成功, 記錄後確認
+            log.error("推送消息格式錯誤, 丟棄, recordId: {}, value: {}", record.getId(), value, e);
+            ack(record.getId());
+            return;
+        }
+        try {
+            push(authorId, blogId, timestamp);
+            ack(record.getId());
+        } catch (Exception e) {
+            // 不確認, 留在 pending-list 稍後重試; 推送是冪等的
+            log.error("推送筆記異常, authorId: {}, blogId: {}", authorId, blogId, e);
+        }
+    }
+
+    private void ack(RecordId recordId) {
+        // 確認後刪除, 推送隊列只保留還沒有推送完的筆記
+        stringRedisTemplate.opsForStream().acknowledge(FEED_STREAM, GROUP_NAME, recordId);
+        stringRedisTemplate.opsForStream().delete(FEED_STREAM, recordId);
+    }
+
+    /**
+     * 重新計算作者是否為大V, 發佈筆記、被關注和取關時調用
+     * @return 是否為大V
+     */
+    public boolean refreshBigV(Long authorId) {
+        Integer followers = followService.query().eq("follow_user_id", authorId).count();
+        if (followers >= pushThreshold) {
+            stringRedisTemplate.opsForSet().add(FEED_BIG_V_KEY, authorId.toString());
+            return true;
+        }
+        stringRedisTemplate.opsForSet().remove(FEED_BIG_V_KEY, authorId.toString());
+        return false;
+    }
+
+    private void push(Long authorId, Long blogId, long timestamp) {
+        // 1.大V只寫發件箱
+        if (refreshBigV(authorId)) {
+            return;
+        }
+        // 2.按主鍵分批讀取粉絲, 每批一次 pipeline 推送
+        byte[] member = blogId.toString().getBytes(StandardCharsets.UTF_8);
+        long activeSince = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(activeDays);
+        long lastId = 0;
+        int pushed = 0;
+        while (true) {
+            List<Follow> follows = followService.query().select("id", "user_id")
+                    .eq("follow_user_id", authorId)
+                    .gt("id", lastId).orderByAsc("id")
+                    .last("LIMIT " + FOLLOWER_BATCH_SIZE).list();
+            if (follows.isEmpty()) {
+                break;
+            }
+            lastId = follows.get(follows.size() - 1).getId();
+            // 2.1.只推送給活躍粉絲
+            List<Long> activeFollowers = filterActive(follows, activeSince);
+            // 2.2.推送並裁剪收件箱
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long followerId : activeFollowers) {
+                    byte[] key = (FEED_KEY + followerId).getBytes(StandardCharsets.UTF_8);
+                    connection.zSetCommands().zAdd(key, timestamp, member);
+                    connection.zSetCommands().zRemRange(key, 0, -inboxCap - 1);
+                }
+                return null;
+            });
+            pushed += activeFollowers.size();
+        }
+        log.debug("筆記推送完成, blogId: {}, 推送粉絲數: {}", blogId, pushed);
+    }
+
+    private List<Long> filterActive(List<Follow> follows, long activeSince) {
+        byte[] activeKey = FEED_ACTIVE_KEY.getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Follow follow : follows) {
+                connection.zSetCommands().zScore(activeKey, follow.getUserId().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        List<Long> active = new ArrayList<>(follows.size());
+        for (int i = 0; i < follows.size(); i++) {
+            Object score = scores.get(i);
+            if (score != null && (Double) score >= activeSince) {
+                active.add(follows.get(i).getUserId());
+            }
+        }
+        return active;
+    }
+
+    /**
+     * 讀取一頁關注推送: 合併收件箱和關注的大V的發件箱
+     * @param max 上一頁的最小時間戳
+     * @param offset 上一頁中和最小時間戳相同的筆記數
+     * @return 按時間戳倒序的 blogId
+     */
+    public Set<ZSetOperations.TypedTuple<String>> read(Long userId, long max, int offset, int count) {
+        // 1.不活躍的用戶沒有收到推送, 先從發件箱補齊收件箱
+        activate(userId);
+        // 2.收件箱加上關注的大V的發件箱
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_KEY + userId);
+        Set<String> bigVs = stringRedisTemplate.opsForSet().intersect(FOLLOWS_KEY + userId, FEED_BIG_V_KEY);
+        if (bigVs != null) {
+            bigVs.forEach(id -> keys.add(FEED_OUTBOX_KEY + id));
+        }
+        // 3.每個來源取 offset + count 條, 合併後跳過 offset 條就是這一頁
+        RedisZSetCommands.Range range = RedisZSetCommands.Range.range().gte(0).lte(max);
+        RedisZSetCommands.Limit limit = RedisZSetCommands.Limit.limit().offset(0).count(offset + count);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zSetCommands().zRevRangeByScoreWithScores(key.getBytes(StandardCharsets.UTF_8), range, limit);
+            }
+            return null;
+        });
+        return merge(results, offset, count);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Set<ZSetOperations.TypedTuple<String>> merge(List<Object> sources, int offset, int count) {
+        // 分數倒序, 分數相同按 member 倒序, 和 ZREVRANGEBYSCORE 的順序一致
+        Map<String, Double> scores = new HashMap<>();
+        for (Object source : sources) {
+            if (source == null) {
+                continue;
+            }
+            for (ZSetOperations.TypedTuple<String> tuple : (Set<ZSetOperations.TypedTuple<String>>) source) {
+                // 同一篇筆記可能同時在收件箱和發件箱中
+                scores.merge(tuple.getValue(), tuple.getScore(), Math::max);
+            }
+        }
+        return scores.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed()
+                        .thenComparing(Map.Entry.<String, Double>comparingByKey().reversed()))
+                .skip(offset)
+                .limit(count)
+                .map(e -> new DefaultTypedTuple<>(e.getKey(), e.getValue()))
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    private void activate(Long userId) {
+        long now = System.currentTimeMillis();
+        Double lastActive = stringRedisTemplate.opsForZSet().score(FEED_ACTIVE_KEY, userId.toString());
+        stringRedisTemplate.opsForZSet().add(FEED_ACTIVE_KEY, userId.toString(), now);
+        if (lastActive != null && lastActive >= now - TimeUnit.DAYS.toMillis(activeDays)) {
+            return;
+        }
+        // 1.不活躍期間沒有推送, 從關注作者的發件箱拉取
+        Set<String> followees = stringRedisTemplate.opsForSet().members(FOLLOWS_KEY + userId);
+        if (followees == null || followees.isEmpty()) {
+            return;
+        }
+        List<String> outboxKeys = followees.stream().map(id -> FEED_OUTBOX_KEY + id).collect(Collectors.toList());
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : outboxKeys) {
+                connection.zSetCommands().zRevRangeWithScores(key.getBytes(StandardCharsets.UTF_8), 0, inboxCap - 1);
+            }
+            return null;
+        });
+        Set<ZSetOperations.TypedTuple<String>> tuples = merge(results, 0, inboxCap);
+        if (tuples.isEmpty()) {
+            return;
+        }
+        // 2.寫入收件箱並裁剪
+        String inboxKey = FEED_KEY + userId;
+        stringRedisTemplate.opsForZSet().add(inboxKey, tuples);
+        stringRedisTemplate.opsForZSet().removeRange(inboxKey, 0, -inboxCap - 1);
+    }
+}
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
@@ -36,6 +35,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     @Resource
     private IUserService userService;
 
+    @Resource
+    private FeedFanout feedFanout;
+
     @Override
     public Result follow(Long followUserId, Boolean isFollow) {
         // 獲取登入用戶
@@ -51,6 +53,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
             if(isSuccess){
                 //把關注用戶的id, 放入redis的set集合 sadd userId followerUserId
                 stringRedisTemplate.opsForSet().add(key, followUserId.toString());
+                // 粉絲數變化後重新判斷是否為大V
+                feedFanout.refreshBigV(followUserId);
             }
         }else{
             // 3.取關, 刪除 delete from tb_follow where userId = ? and follow_user_id = ?
@@ -59,6 +63,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
             if(isSuccess){
                 // 把關注用戶的id從Redis集合中移除
                 stringRedisTemplate.opsForSet().remove(key, followUserId.toString());
+                // 粉絲數變化後重新判斷是否為大V
+                feedFanout.refreshBigV(followUserId);
             }
         }
         return Result.ok();
@@ -88,11 +94,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         }
         // 3.解析id集合
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
-        // 4.查詢用戶
-        List<UserDTO> users = userService.listByIds(ids)
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        // 4.查詢用戶, 優先從緩存讀取
+        List<UserDTO> users = userService.queryUserDTOs(ids);
         return Result.ok(users);
     }
 }
@@ -0,0 +1,181 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 店鋪和筆記id的布隆過濾器, 防止用不存在的id穿透到Redis和資料庫
+ * <p>
+ * 啟動時從Redis載入, Redis中沒有時按主鍵分批讀取資料表建立; 定時重建, 去掉已刪除的id並按記錄數調整大小,
+ * 重建完成前繼續使用舊的過濾器。載入完成前所有id都當作可能存在
+ * </p>
+ */
+@Slf4j
+@Component
+public class IdBloomFilters {
+
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    // 店鋪id的誤判率
+    @Value("${hmdp.bloom.shop-fpp:0.001}")
+    private double shopFpp;
+
+    // 筆記id的誤判率
+    @Value("${hmdp.bloom.blog-fpp:0.01}")
+    private double blogFpp;
+
+    // 預留的容量, 按當前記錄數的倍數計算
+    @Value("${hmdp.bloom.capacity-factor:2}")
+    private double capacityFactor;
+
+    // 重建的間隔, 單位秒
+    @Value("${hmdp.bloom.rebuild-interval:86400}")
+    private long rebuildInterval;
+
+    private RedisBloomFilter shopFilter;
+    private RedisBloomFilter blogFilter;
+    private final Map<String, RedisBloomFilter> filters = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService rebuildExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        shopFilter = new RedisBloomFilter(stringRedisTemplate, "shop", shopFpp);
+        blogFilter = new RedisBloomFilter(stringRedisTemplate, "blog", blogFpp);
+        filters.put(shopFilter.getName(), shopFilter);
+        filters.put(blogFilter.getName(), blogFilter);
+        // 訂閱其他節點的新增和切換通知, 格式: name:action:value
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":", 3);
+            RedisBloomFilter filter = filters.get(parts[0]);
+            if (filter != null && parts.length == 3) {
+                filter.onMessage(parts[1], parts[2]);
+            }
+        }, new ChannelTopic(BLOOM_CHANNEL));
+        // 店鋪緩存查詢前先判斷id是否存在
+        cacheClient.enableBloomFilter(CACHE_SHOP_KEY, shopFilter::mightContain);
+        // 啟動時在後台載入, 之後定時重建
+        rebuildExecutor.execute(() -> {
+            loadOrRebuild(shopFilter, shopMapper);
+            loadOrRebuild(blogFilter, blogMapper);
+        });
+        rebuildExecutor.scheduleWithFixedDelay(this::rebuildAll, rebuildInterval, rebuildInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rebuildExecutor.shutdown();
+    }
+
+    public boolean mightContainShop(Long id) {
+        return shopFilter.mightContain(id);
+    }
+
+    public boolean mightContainBlog(Long id) {
+        return blogFilter.mightContain(id);
+    }
+
+    public void addShop(Long id) {
+        shopFilter.add(id);
+    }
+
+    public void addBlog(Long id) {
+        blogFilter.add(id);
+    }
+
+    /**
+     * 重建所有過濾器
+     */
+    public void rebuildAll() {
+        rebuild(shopFilter, shopMapper);
+        rebuild(blogFilter, blogMapper);
+    }
+
+    private void loadOrRebuild(RedisBloomFilter filter, BaseMapper<?> mapper) {
+        try {
+            if (filter.load()) {
+                return;
+            }
+        } catch (Exception e) {
+            log.error("載入布隆過濾器 {} 異常", filter.getName(), e);
+        }
+        rebuild(filter, mapper);
+        // 其他節點正在重建時沒有搶到鎖, 等它切換後通過通知載入
+    }
+
+    private void rebuild(RedisBloomFilter filter, BaseMapper<?> mapper) {
+        RLock lock = redissonClient.getLock(LOCK_BLOOM_REBUILD_KEY + filter.getName());
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            long count = mapper.selectCount(null);
+            filter.rebuild((long) Math.ceil(count * capacityFactor), consumer -> forEachId(mapper, consumer));
+        } catch (Exception e) {
+            log.error("重建布隆過濾器 {} 異常", filter.getName(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void forEachId(BaseMapper mapper, Consumer<Object> consumer) {
+        long lastId = 0;
+        while (true) {
+            // 按主鍵分批讀取, 不用 OFFSET
+            List<Object> ids = mapper.selectObjs(new QueryWrapper<>()
+                    .select("id")
+                    .gt("id", lastId).orderByAsc("id")
+                    .last("LIMIT " + LOAD_BATCH_SIZE));
+            if (ids.isEmpty()) {
+                return;
+            }
+            ids.forEach(consumer);
+            lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.SeckillStockShards;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_PRELOAD_KEY;
+
+/**
+ * 秒殺券的預熱和過期
+ * <p>
+ * 定時掃描即將開始的秒殺券, 在開始前 preload-ahead 秒把庫存和秒殺時間寫入Redis, 由 seckill.lua 判斷是否在秒殺時間內;
+ * 所有key在結束後 expire-after-end 秒過期, 秒殺期間的請求不需要再查詢資料庫
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillPreloader {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    // 開始前多少秒預熱, 單位秒
+    @Value("${hmdp.seckill.preload-ahead:60}")
+    private long preloadAhead;
+
+    // 掃描即將開始的秒殺券的間隔, 單位秒
+    @Value("${hmdp.seckill.preload-scan-interval:300}")
+    private long scanInterval;
+
+    // 結束後多少秒清除Redis中的key, 單位秒
+    @Value("${hmdp.seckill.expire-after-end:600}")
+    private long expireAfterEnd;
+
+    // 分片訂單隊列還沒有處理完時, 多久後再嘗試清除, 單位秒
+    private static final long EXPIRE_RETRY_SECONDS = 60;
+
+    // 已經安排的秒殺券, value 為安排時的秒殺時間, 秒殺時間修改後重新安排
+    private final Map<Long, Window> scheduled = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService preloadExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        preloadExecutor.scheduleWithFixedDelay(this::scan, 0, scanInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        preloadExecutor.shutdownNow();
+    }
+
+    /**
+     * 新增秒殺券時調用, 立即寫入庫存和秒殺時間
+     */
+    public void register(SeckillVoucher voucher) {
+        warm(voucher);
+        schedule(voucher);
+    }
+
+    private void scan() {
+        try {
+            // 掃描範圍比掃描間隔多出預熱時間, 保證在預熱時間之前安排好
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("end_time", now)
+                    .lt("begin_time", now.plusSeconds(scanInterval + preloadAhead))
+                    .list();
+            vouchers.forEach(this::schedule);
+        } catch (Exception e) {
+            log.error("掃描秒殺券異常", e);
+        }
+    }
+
+    private synchronized void schedule(SeckillVoucher voucher) {
+        Window window = new Window(voucher);
+        Window old = scheduled.get(voucher.getVoucherId());
+        if (window.equals(old)) {
+            return;
+        }
+        if (old != null) {
+            old.cancel();
+        }
+        scheduled.put(voucher.getVoucherId(), window);
+        // 1.開始前預熱
+        long now = System.currentTimeMillis();
+        long warmDelay = Math.max(0, window.begin - TimeUnit.SECONDS.toMillis(preloadAhead) - now);
+        window.warmTask = preloadExecutor.schedule(() -> warm(voucher), warmDelay, TimeUnit.MILLISECONDS);
+        // 2.結束後清除
+        long expireDelay = Math.max(0, window.end + TimeUnit.SECONDS.toMillis(expireAfterEnd) - now);
+        window.expireTask = preloadExecutor.schedule(() -> expire(voucher.getVoucherId(), window), expireDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void warm(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        Window window = new Window(voucher);
+        // 多個節點同時預熱時只寫入一次庫存
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_PRELOAD_KEY + voucherId);
+        lock.lock();
+        try {
+            // 1.Redis中沒有庫存時寫入, 庫存使用資料庫中的最新值
+            SeckillVoucher latest = seckillVoucherService.getById(voucherId);
+            if (latest == null) {
+                return;
+            }
+            seckillStockShards.provisionIfAbsent(voucherId, latest.getStock());
+            // 2.寫入秒殺時間, 所有key在結束後過期
+            long expireAt = window.end + TimeUnit.SECONDS.toMillis(expireAfterEnd);
+            Map<byte[], byte[]> fields = new HashMap<>(2);
+            fields.put(bytes("begin"), bytes(String.valueOf(window.begin)));
+            fields.put(bytes("end"), bytes(String.valueOf(window.end)));
+            List<String> windowKeys = seckillStockShards.windowKeys(voucherId);
+            List<String> stockKeys = seckillStockShards.stockKeys(voucherId);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String key : windowKeys) {
+                    connection.hashCommands().hMSet(bytes(key), fields);
+                    connection.keyCommands().pExpireAt(bytes(key), expireAt);
+                }
+                for (String key : stockKeys) {
+                    connection.keyCommands().pExpireAt(bytes(key), expireAt);
+                }
+                return null;
+            });
+            log.debug("秒殺券預熱完成, voucherId: {}", voucherId);
+        } catch (Exception e) {
+            log.error("秒殺券預熱異常, voucherId: {}", voucherId, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void expire(Long voucherId, Window window) {
+        try {
+            // 分片的訂單隊列還有沒處理完的訂單, 稍後再清除, 否則訂單會丟失
+            if (!seckillStockShards.ordersDrained(voucherId)) {
+                log.warn("分片訂單隊列還沒有處理完, {} 秒後再清除, voucherId: {}", EXPIRE_RETRY_SECONDS, voucherId);
+                window.expireTask = preloadExecutor.schedule(() -> expire(voucherId, window), EXPIRE_RETRY_SECONDS, TimeUnit.SECONDS);
+                return;
+            }
+            // 庫存和秒殺時間已經在Redis中過期, 下單時才創建的訂單集合、分片的訂單隊列和分片數在這裡清除
+            List<String> keys = new ArrayList<>(seckillStockShards.orderKeys(voucherId));
+            keys.addAll(seckillStockShards.stockKeys(voucherId));
+            keys.addAll(seckillStockShards.windowKeys(voucherId));
+            keys.addAll(seckillStockShards.orderStreamKeys(voucherId));
+            keys.addAll(seckillStockShards.transferKeys(voucherId));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                keys.forEach(key -> connection.keyCommands().del(bytes(key)));
+                return null;
+            });
+            seckillStockShards.forget(voucherId);
+            log.debug("秒殺券已結束, 清除Redis中的key, voucherId: {}", voucherId);
+            scheduled.remove(voucherId, window);
+        } catch (Exception e) {
+            log.error("清除秒殺券異常, voucherId: {}", voucherId, e);
+            scheduled.remove(voucherId, window);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static class Window {
+        private final long begin;
+        private final long end;
+        private ScheduledFuture<?> warmTask;
+        private ScheduledFuture<?> expireTask;
+
+        Window(SeckillVoucher voucher) {
+            this.begin = toMillis(voucher.getBeginTime());
+            this.end = toMillis(voucher.getEndTime());
+        }
+
+        void cancel() {
+            if (warmTask != null) {
+                warmTask.cancel(false);
+            }
+            if (expireTask != null) {
+                expireTask.cancel(false);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Window)) {
+                return false;
+            }
+            Window window = (Window) o;
+            return begin == window.begin && end == window.end;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(begin, end);
+        }
+    }
+}
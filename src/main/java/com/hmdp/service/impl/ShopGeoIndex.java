@@ -0,0 +1,358 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.GeoGridIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 每個店鋪類型一個進程內的地理位置索引, 同時維護Redis中的 shop:geo:{typeId}
+ * <p>
+ * 啟動時按主鍵分批讀取 tb_shop 建立索引; 店鋪新增或修改後更新Redis, 並通過 pub/sub 通知所有節點重新讀取該店鋪;
+ * 定時對賬, 修復本地索引和Redis中與資料庫不一致的店鋪; 對賬期間新增或修改的店鋪不在快照中,
+ * 移除前會重新查詢資料庫確認
+ * </p>
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex {
+
+    // 網格邊長約1公里
+    private static final double CELL_DEGREES = 0.01;
+    private static final int LOAD_BATCH_SIZE = 1000;
+    // Redis GEO 的座標精度不到1米, 超過這個距離才算不一致
+    private static final double DRIFT_TOLERANCE_METERS = 1.0;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    // 對賬的間隔, 單位秒
+    @Value("${hmdp.shop-geo.reconcile-interval:3600}")
+    private long reconcileInterval;
+
+    private final Map<Long, GeoGridIndex> indexes = new ConcurrentHashMap<>();
+    // 店鋪所在的類型, 類型修改時從舊索引中移除
+    private final Map<Long, Long> shopTypes = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+
+    private final ScheduledExecutorService reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        // 訂閱店鋪變更通知
+        listenerContainer.addMessageListener(
+                (message, pattern) -> reloadLocal(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SHOP_GEO_CHANNEL));
+        // 啟動時在後台執行一次對賬, 建立本地索引並補齊Redis, 完成前查詢使用Redis GEO
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcile, 0, reconcileInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        reconcileExecutor.shutdown();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 按距離由近到遠查詢某個類型的店鋪
+     */
+    public List<GeoGridIndex.Neighbor> nearest(Long typeId, double x, double y, double maxMeters,
+                                               GeoGridIndex.Neighbor after, int limit) {
+        GeoGridIndex index = indexes.get(typeId);
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        return index.nearest(x, y, maxMeters, after, limit);
+    }
+
+    /**
+     * 店鋪新增或修改後調用: 更新Redis, 並讓所有節點重新讀取該店鋪
+     */
+    public void reload(Long shopId) {
+        Shop shop = reloadLocal(shopId);
+        // 1.從其他類型的key中移除, 類型可能被修改
+        String member = shopId.toString();
+        Long typeId = shop == null ? null : shop.getTypeId();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long otherTypeId : indexes.keySet()) {
+                if (!otherTypeId.equals(typeId)) {
+                    connection.zSetCommands().zRem(bytes(SHOP_GEO_KEY + otherTypeId), bytes(member));
+                }
+            }
+            return null;
+        });
+        // 2.寫入所在類型的key
+        if (isIndexable(shop)) {
+            stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + typeId, new Point(shop.getX(), shop.getY()), member);
+        }
+        // 3.通知其他節點
+        stringRedisTemplate.convertAndSend(SHOP_GEO_CHANNEL, member);
+    }
+
+    private Shop reloadLocal(Long shopId) {
+        Shop shop = shopMapper.selectById(shopId);
+        if (shop == null) {
+            remove(shopId);
+            return null;
+        }
+        index(shop);
+        return shop;
+    }
+
+    /**
+     * 對賬: 按主鍵分批讀取 tb_shop, 修復本地索引; 搶到鎖的節點同時修復Redis
+     */
+    public void reconcile() {
+        RLock lock = redissonClient.getLock(LOCK_SHOP_GEO_RECONCILE_KEY);
+        boolean repairRedis = lock.tryLock();
+        try {
+            // 資料庫中每個類型的店鋪id
+            Map<Long, Set<Long>> shopIdsByType = new HashMap<>();
+            long[] redisRepaired = {0};
+            long lastId = forEachShopBatch(shops -> {
+                // 1.修復本地索引
+                for (Shop shop : shops) {
+                    index(shop);
+                    if (isIndexable(shop)) {
+                        shopIdsByType.computeIfAbsent(shop.getTypeId(), k -> new HashSet<>()).add(shop.getId());
+                    }
+                }
+                // 2.修復Redis中缺少或者座標不一致的店鋪
+                if (repairRedis) {
+                    redisRepaired[0] += repairRedisBatch(shops);
+                }
+            });
+            // 3.移除資料庫中已經不存在的店鋪, 只看掃描範圍內的id, 之後新增的店鋪不在快照中
+            List<Long> candidates = new ArrayList<>();
+            for (Map.Entry<Long, Long> entry : shopTypes.entrySet()) {
+                Long shopId = entry.getKey();
+                Set<Long> ids = shopIdsByType.get(entry.getValue());
+                if (shopId <= lastId && (ids == null || !ids.contains(shopId))) {
+                    candidates.add(shopId);
+                }
+            }
+            // 4.掃描期間可能被修改, 重新查詢資料庫確認
+            Map<Long, Shop> current = selectShops(candidates);
+            int localRemoved = 0;
+            for (Long shopId : candidates) {
+                Shop shop = current.get(shopId);
+                if (shop == null) {
+                    remove(shopId);
+                    localRemoved++;
+                } else {
+                    index(shop);
+                }
+            }
+            long redisRemoved = repairRedis ? removeRedisOrphans(shopIdsByType, lastId) : 0;
+            ready = true;
+            log.info("店鋪地理位置對賬完成, 本地移除 {} 家, Redis修復 {} 家, Redis移除 {} 家",
+                    localRemoved, redisRepaired[0], redisRemoved);
+        } catch (Exception e) {
+            log.error("店鋪地理位置對賬異常", e);
+        } finally {
+            if (repairRedis) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return 讀取到的最大店鋪id
+     */
+    private long forEachShopBatch(Consumer<List<Shop>> consumer) {
+        long lastId = 0;
+        while (true) {
+            // 按主鍵分批讀取, 不用 OFFSET
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "type_id", "x", "y")
+                    .gt("id", lastId).orderByAsc("id")
+                    .last("LIMIT " + LOAD_BATCH_SIZE));
+            if (shops.isEmpty()) {
+                return lastId;
+            }
+            consumer.accept(shops);
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private int repairRedisBatch(List<Shop> shops) {
+        List<Shop> indexable = new ArrayList<>(shops.size());
+        for (Shop shop : shops) {
+            if (isIndexable(shop)) {
+                indexable.add(shop);
+            }
+        }
+        // 1.一次 pipeline 查詢Redis中的座標
+        List<Object> positions = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : indexable) {
+                connection.geoCommands().geoPos(bytes(SHOP_GEO_KEY + shop.getTypeId()), bytes(shop.getId().toString()));
+            }
+            return null;
+        });
+        // 2.找出缺少或者座標不一致的店鋪
+        List<Shop> drifted = new ArrayList<>();
+        for (int i = 0; i < indexable.size(); i++) {
+            Shop shop = indexable.get(i);
+            List<Point> position = (List<Point>) positions.get(i);
+            Point point = position == null || position.isEmpty() ? null : position.get(0);
+            if (point == null || GeoGridIndex.distance(point.getX(), point.getY(), shop.getX(), shop.getY()) > DRIFT_TOLERANCE_METERS) {
+                drifted.add(shop);
+            }
+        }
+        if (drifted.isEmpty()) {
+            return 0;
+        }
+        // 3.一次 pipeline 寫回
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : drifted) {
+                connection.geoCommands().geoAdd(bytes(SHOP_GEO_KEY + shop.getTypeId()),
+                        new Point(shop.getX(), shop.getY()), bytes(shop.getId().toString()));
+            }
+            return null;
+        });
+        return drifted.size();
+    }
+
+    private long removeRedisOrphans(Map<Long, Set<Long>> shopIdsByType, long lastId) {
+        long removed = 0;
+        // 包括已經沒有店鋪的類型, 它們的key也要清理
+        for (Long typeId : geoTypeIds(shopIdsByType.keySet())) {
+            String key = SHOP_GEO_KEY + typeId;
+            Set<Long> ids = shopIdsByType.getOrDefault(typeId, Collections.emptySet());
+            // 1.找出掃描範圍內資料庫快照中沒有的店鋪
+            List<Long> candidates = new ArrayList<>();
+            try (Cursor<ZSetOperations.TypedTuple<String>> cursor = stringRedisTemplate.opsForZSet()
+                    .scan(key, ScanOptions.scanOptions().count(LOAD_BATCH_SIZE).build())) {
+                while (cursor.hasNext()) {
+                    Long shopId = Long.valueOf(cursor.next().getValue());
+                    if (shopId <= lastId && !ids.contains(shopId)) {
+                        candidates.add(shopId);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("掃描 {} 異常", key, e);
+                continue;
+            }
+            // 2.重新查詢資料庫, 掃描期間被修改到這個類型的店鋪保留
+            Map<Long, Shop> current = selectShops(candidates);
+            List<String> orphans = new ArrayList<>();
+            for (Long shopId : candidates) {
+                Shop shop = current.get(shopId);
+                if (shop == null || !typeId.equals(shop.getTypeId())) {
+                    orphans.add(shopId.toString());
+                }
+            }
+            if (!orphans.isEmpty()) {
+                removed += stringRedisTemplate.opsForZSet().remove(key, orphans.toArray());
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Redis中所有 shop:geo:{typeId} 的類型id, 加上資料庫和本地索引中的類型
+     */
+    private Set<Long> geoTypeIds(Set<Long> dbTypeIds) {
+        Set<Long> typeIds = new HashSet<>(dbTypeIds);
+        typeIds.addAll(indexes.keySet());
+        ScanOptions options = ScanOptions.scanOptions().match(SHOP_GEO_KEY + "*").count(LOAD_BATCH_SIZE).build();
+        try (Cursor<byte[]> cursor = stringRedisTemplate.execute(
+                (RedisCallback<Cursor<byte[]>>) connection -> connection.scan(options))) {
+            while (cursor != null && cursor.hasNext()) {
+                String suffix = new String(cursor.next(), StandardCharsets.UTF_8).substring(SHOP_GEO_KEY.length());
+                if (StrUtil.isNumeric(suffix)) {
+                    typeIds.add(Long.valueOf(suffix));
+                }
+            }
+        } catch (Exception e) {
+            log.error("掃描店鋪地理位置key異常", e);
+        }
+        return typeIds;
+    }
+
+    /**
+     * 重新查詢店鋪, 只返回可以建立索引的
+     */
+    private Map<Long, Shop> selectShops(List<Long> shopIds) {
+        Map<Long, Shop> shops = new HashMap<>(shopIds.size());
+        for (int from = 0; from < shopIds.size(); from += LOAD_BATCH_SIZE) {
+            List<Long> batch = shopIds.subList(from, Math.min(from + LOAD_BATCH_SIZE, shopIds.size()));
+            for (Shop shop : shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "type_id", "x", "y").in("id", batch))) {
+                if (isIndexable(shop)) {
+                    shops.put(shop.getId(), shop);
+                }
+            }
+        }
+        return shops;
+    }
+
+    private void index(Shop shop) {
+        if (!isIndexable(shop)) {
+            remove(shop.getId());
+            return;
+        }
+        Long typeId = shop.getTypeId();
+        Long oldTypeId = shopTypes.put(shop.getId(), typeId);
+        if (oldTypeId != null && !oldTypeId.equals(typeId)) {
+            indexes.get(oldTypeId).remove(shop.getId());
+        }
+        indexes.computeIfAbsent(typeId, k -> new GeoGridIndex(CELL_DEGREES)).put(shop.getId(), shop.getX(), shop.getY());
+    }
+
+    private void remove(Long shopId) {
+        Long typeId = shopTypes.remove(shopId);
+        if (typeId != null) {
+            indexes.get(typeId).remove(shopId);
+        }
+    }
+
+    private static boolean isIndexable(Shop shop) {
+        return shop != null && shop.getTypeId() != null && shop.getX() != null && shop.getY() != null;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,127 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.NGramIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SHOP_NAME_CHANNEL;
+
+/**
+ * 店鋪名稱和地址的全文索引
+ * <p>
+ * 啟動時按主鍵分批讀取 tb_shop 建立索引, 店鋪新增或修改後通過 pub/sub 通知所有節點重新讀取該店鋪
+ * </p>
+ */
+@Slf4j
+@Component
+public class ShopNameIndex {
+
+    private static final int LOAD_BATCH_SIZE = 1000;
+    // 建立失敗後重試的等待時間, 每次翻倍, 單位秒
+    private static final long RETRY_MIN_DELAY = 1;
+    private static final long RETRY_MAX_DELAY = 60;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    private final NGramIndex index = new NGramIndex();
+
+    private volatile boolean ready;
+
+    private final ScheduledExecutorService loadExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        // 訂閱店鋪變更通知
+        listenerContainer.addMessageListener(
+                (message, pattern) -> reloadLocal(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SHOP_NAME_CHANNEL));
+        // 在後台建立索引, 完成前查詢使用資料庫
+        loadExecutor.execute(() -> loadAll(RETRY_MIN_DELAY));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        loadExecutor.shutdown();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @param retryDelay 失敗後等待多久重試, 單位秒
+     */
+    private void loadAll(long retryDelay) {
+        try {
+            long lastId = 0;
+            while (true) {
+                // 按主鍵分批讀取, 不用 OFFSET
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                        .select("id", "name", "address")
+                        .gt("id", lastId).orderByAsc("id")
+                        .last("LIMIT " + LOAD_BATCH_SIZE));
+                if (shops.isEmpty()) {
+                    break;
+                }
+                shops.forEach(shop -> index.put(shop.getId(), shop.getName(), shop.getAddress()));
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            ready = true;
+            log.info("店鋪名稱索引建立完成, 共 {} 家", index.size());
+        } catch (Exception e) {
+            // 重試直到成功, 否則查詢會一直使用資料庫
+            log.error("建立店鋪名稱索引異常, {} 秒後重試", retryDelay, e);
+            if (!loadExecutor.isShutdown()) {
+                long nextDelay = Math.min(retryDelay * 2, RETRY_MAX_DELAY);
+                loadExecutor.schedule(() -> loadAll(nextDelay), retryDelay, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    public List<NGramIndex.Hit> search(String keyword, int offset, int limit) {
+        return index.search(keyword, offset, limit);
+    }
+
+    public List<String> suggest(String prefix, int limit) {
+        return index.suggest(prefix, limit);
+    }
+
+    /**
+     * 店鋪新增或修改後調用, 所有節點重新讀取該店鋪
+     */
+    public void reload(Long shopId) {
+        reloadLocal(shopId);
+        stringRedisTemplate.convertAndSend(SHOP_NAME_CHANNEL, shopId.toString());
+    }
+
+    private void reloadLocal(Long shopId) {
+        Shop shop = shopMapper.selectById(shopId);
+        if (shop == null) {
+            index.remove(shopId);
+            return;
+        }
+        index.put(shop.getId(), shop.getName(), shop.getAddress());
+    }
+}
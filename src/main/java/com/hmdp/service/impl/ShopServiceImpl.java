@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
@@ -11,6 +12,8 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.GeoGridIndex;
+import com.hmdp.utils.NGramIndex;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.data.geo.Distance;
@@ -21,7 +24,10 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
@@ -30,6 +36,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -50,6 +57,21 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    @PostConstruct
+    private void init(){
+        // 熱點店鋪開啟本地一級緩存
+        cacheClient.enableLocalCache(CACHE_SHOP_KEY, CACHE_SHOP_LOCAL_SIZE, CACHE_SHOP_LOCAL_TTL, TimeUnit.SECONDS);
+    }
+
     @Override
     public Result queryById(Long id) {
         // 緩存穿透
@@ -79,13 +101,34 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 1.更新資料庫
         updateById(shop);
-        // 2.刪除緩存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 2.事務提交後刪除緩存並通知所有節點清除本地緩存, 再更新地理位置索引;
+        // 提交前刪除的話, 並發查詢可能讀到未提交前的舊數據寫回緩存, 緩存的版本保證提交前開始的查詢不能再寫回
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                cacheClient.delete(CACHE_SHOP_KEY + id);
+                shopGeoIndex.reload(id);
+                shopNameIndex.reload(id);
+            }
+        });
         return Result.ok();
     }
 
     @Override
-    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+    public boolean save(Shop shop) {
+        boolean isSuccess = super.save(shop);
+        if (isSuccess) {
+            // 新店鋪加入布隆過濾器, 之後的查詢不會被攔截
+            idBloomFilters.addShop(shop.getId());
+            // 新店鋪加入地理位置索引和名稱索引
+            shopGeoIndex.reload(shop.getId());
+            shopNameIndex.reload(shop.getId());
+        }
+        return isSuccess;
+    }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y, Double lastDistance, Long lastId) {
         // 1.判斷是否需要根據座標查詢
         if (x == null || y == null) {
             // 根据类型分页查询
@@ -95,16 +138,21 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             // 返回数据
             return Result.ok(page.getRecords());
         }
-        // 2.計算分頁參數
+        // 2.優先查詢本地地理位置索引
+        if (shopGeoIndex.isReady()) {
+            return Result.ok(queryNearbyShops(typeId, current, x, y, lastDistance, lastId));
+        }
+        // 3.索引還在載入, 查詢Redis GEO
+        // 3.1.計算分頁參數
         int from = (current - 1 ) * SystemConstants.DEFAULT_PAGE_SIZE;
         int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
-        // 3.查詢Redis, 按照距離排序, 分頁 結果: shopId, distance
+        // 3.2.查詢Redis, 按照距離排序, 分頁 結果: shopId, distance
         String key = SHOP_GEO_KEY + typeId;
         GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo()
                 .search(
                         key,
                         GeoReference.fromCoordinate(x, y),
-                        new Distance(5000),
+                        new Distance(SHOP_GEO_MAX_METERS),
                         RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().limit(end)
                 );
         // 4.解析出id
@@ -126,13 +174,79 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr, distance);
         });
-        // 5.根據id查詢Shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        // 5.根據id查詢Shop, 優先從緩存讀取
+        List<Shop> shops = queryCachedCopies(ids);
         for (Shop shop : shops){
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
         }
         // 6.返回
         return Result.ok(shops);
     }
+
+    private List<Shop> queryNearbyShops(Integer typeId, Integer current, Double x, Double y,
+                                        Double lastDistance, Long lastId) {
+        // 1.按距離查詢一頁店鋪id, 有游標時從游標之後開始, 否則跳過前面的頁
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        List<GeoGridIndex.Neighbor> neighbors;
+        if (lastDistance != null && lastId != null) {
+            GeoGridIndex.Neighbor after = new GeoGridIndex.Neighbor(lastId, lastDistance);
+            neighbors = shopGeoIndex.nearest(typeId.longValue(), x, y, SHOP_GEO_MAX_METERS, after, size);
+        } else {
+            int from = (current - 1) * size;
+            neighbors = shopGeoIndex.nearest(typeId.longValue(), x, y, SHOP_GEO_MAX_METERS, null, from + size);
+            neighbors = neighbors.size() <= from ? Collections.emptyList() : neighbors.subList(from, neighbors.size());
+        }
+        // 2.從店鋪緩存批量讀取詳情
+        Map<Long, Double> distances = new HashMap<>(neighbors.size());
+        List<Long> ids = new ArrayList<>(neighbors.size());
+        for (GeoGridIndex.Neighbor neighbor : neighbors) {
+            ids.add(neighbor.getId());
+            distances.put(neighbor.getId(), neighbor.getDistance());
+        }
+        List<Shop> shops = queryCachedCopies(ids);
+        shops.forEach(shop -> shop.setDistance(distances.get(shop.getId())));
+        return shops;
+    }
+
+    private List<Shop> queryCachedCopies(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 一次 MGET, 未命中的店鋪一次 IN 查詢
+        List<Shop> cached = cacheClient.queryBatch(
+                CACHE_SHOP_KEY, ids, Shop.class, this::loadShops, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 緩存中的對象可能被其他請求共用, 複製後再修改
+        return cached.stream().map(shop -> BeanUtil.copyProperties(shop, Shop.class)).collect(Collectors.toList());
+    }
+
+    private Map<Long, Shop> loadShops(List<Long> ids) {
+        return listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, shop -> shop));
+    }
+
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        // 頁碼從1開始
+        current = current == null || current < 1 ? 1 : current;
+        // 1.沒有關鍵字或者索引還在建立, 查詢資料庫
+        if (StrUtil.isBlank(name) || !shopNameIndex.isReady()) {
+            Page<Shop> page = query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .page(new Page<>(current, size));
+            return Result.ok(page.getRecords());
+        }
+        // 2.從全文索引按相關度分頁
+        List<NGramIndex.Hit> hits = shopNameIndex.search(name, (current - 1) * size, size);
+        // 3.從店鋪緩存批量讀取詳情
+        List<Long> ids = hits.stream().map(NGramIndex.Hit::getId).collect(Collectors.toList());
+        return Result.ok(queryCachedCopies(ids));
+    }
+
+    @Override
+    public Result suggestShopName(String prefix) {
+        if (StrUtil.isBlank(prefix) || !shopNameIndex.isReady()) {
+            return Result.ok(Collections.emptyList());
+        }
+        return Result.ok(shopNameIndex.suggest(prefix, SystemConstants.MAX_PAGE_SIZE));
+    }
 }
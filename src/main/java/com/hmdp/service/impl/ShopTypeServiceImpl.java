@@ -1,11 +1,30 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.crypto.digest.DigestUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_VERSION_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -14,7 +33,104 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    // 檢查Redis中版本號的間隔, 單位秒
+    @Value("${hmdp.shop-type.version-check-interval:10}")
+    private long versionCheckInterval;
+
+    private volatile ShopTypeSnapshot snapshot;
+
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        // 啟動時預先載入, 請求不會訪問資料庫
+        snapshot = load(currentVersion());
+        refreshExecutor.scheduleWithFixedDelay(this::refreshIfChanged,
+                versionCheckInterval, versionCheckInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdown();
+    }
+
+    @Override
+    public ShopTypeSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public void markChanged() {
+        // 版本號加1, 所有節點在下一次檢查時重新載入
+        stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY);
+    }
+
+    @Override
+    public boolean save(ShopType entity) {
+        boolean isSuccess = super.save(entity);
+        if (isSuccess) {
+            markChanged();
+        }
+        return isSuccess;
+    }
+
+    @Override
+    public boolean updateById(ShopType entity) {
+        boolean isSuccess = super.updateById(entity);
+        if (isSuccess) {
+            markChanged();
+        }
+        return isSuccess;
+    }
+
+    @Override
+    public boolean removeById(Serializable id) {
+        boolean isSuccess = super.removeById(id);
+        if (isSuccess) {
+            markChanged();
+        }
+        return isSuccess;
+    }
+
+    private void refreshIfChanged() {
+        try {
+            long version = currentVersion();
+            if (version != snapshot.getVersion()) {
+                snapshot = load(version);
+                log.info("店鋪類型已重新載入, version: {}", version);
+            }
+        } catch (Exception e) {
+            log.error("重新載入店鋪類型異常", e);
+        }
+    }
+
+    private long currentVersion() {
+        String version = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY);
+        return version == null ? 0 : Long.parseLong(version);
+    }
+
+    private ShopTypeSnapshot load(long version) {
+        // 1.查詢資料庫
+        List<ShopType> types = query().orderByAsc("sort").list();
+        // 2.按接口的響應格式序列化一次, 之後每個請求直接返回這些字節
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(Result.ok(types));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("序列化店鋪類型失敗", e);
+        }
+        // 3.內容的摘要作為強ETag
+        String etag = "\"" + DigestUtil.md5Hex(body) + "\"";
+        return new ShopTypeSnapshot(version, types, body, etag);
+    }
 }
@@ -11,7 +11,9 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.TokenSessionCache;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.connection.BitFieldSubCommands;
@@ -23,10 +25,12 @@ import javax.servlet.http.HttpSession;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -46,6 +50,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private TokenSessionCache tokenSessionCache;
+
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 1.校驗手機號
@@ -109,6 +119,15 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    @Override
+    public Result logout(String token) {
+        // 1.刪除redis中的登入狀態
+        stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+        // 2.通知所有節點清除本地緩存
+        tokenSessionCache.invalidate(token);
+        return Result.ok();
+    }
+
     @Override
     public Result sign() {
         // 1.獲取當前登入用戶
@@ -151,6 +170,14 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             return Result.ok(0);
         }
         // 6.循環遍歷
+        return Result.ok(countContinuousSign(num));
+    }
+
+    /**
+     * 從最低位開始, 統計連續為1的bit數, 即截止今天的連續簽到天數
+     * @param num BITFIELD 讀出的簽到記錄
+     */
+    public static int countContinuousSign(long num) {
         int count = 0;
         while(true) {
             // 6.1.讓這個數字與1作與運算, 得到數字的最後一個bit位
@@ -165,7 +192,21 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             // 把數字右移一位, 拋棄最後一個bit位,　繼續下一個bit位
             num >>>=1;
         }
-        return Result.ok(count);
+        return count;
+    }
+
+    @Override
+    public List<UserDTO> queryUserDTOs(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 一次 MGET, 未命中的用戶一次 IN 查詢
+        return cacheClient.queryBatch(CACHE_USER_KEY, ids, UserDTO.class, this::loadUserDTOs, CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    private Map<Long, UserDTO> loadUserDTOs(List<Long> ids) {
+        return listByIds(ids).stream()
+                .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class)));
     }
 
     private User createUserWithPhone(String phone) {
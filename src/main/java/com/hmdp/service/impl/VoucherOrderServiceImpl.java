@@ -8,28 +8,36 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillStockShards;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -53,7 +61,15 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillAdmission seckillAdmission;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    // 消費者線程通過代理對象下單, 事務才會生效; 延遲注入避免循環依賴
+    @Lazy
+    @Resource
+    private IVoucherOrderService self;
 
     private static final DefaultRedisScript<Long>SECKILL_SCRIPT;
     static {
@@ -64,81 +80,323 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
 
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final String QUEUE_NAME = SECKILL_ORDER_STREAM;
+    private static final String GROUP_NAME = SECKILL_ORDER_GROUP;
+    // 分片訂單隊列都沒有消息時的等待時間
+    private static final long SHARD_POLL_IDLE_MILLIS = 200L;
+    // pending-list 處理失敗後的等待時間, 每次失敗翻倍
+    private static final long PENDING_RETRY_MIN_MILLIS = 20L;
+    private static final long PENDING_RETRY_MAX_MILLIS = 10_000L;
+    // 已處理消息id的保留時間
+    private static final long PROCESSED_RETENTION_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // 消費者數量與每批讀取的訊息數, 可在 application.yaml 調整
+    @Value("${hmdp.seckill.order-consumers:4}")
+    private int consumerCount;
+
+    @Value("${hmdp.seckill.order-batch-size:50}")
+    private int batchSize;
+
+    // 消息投遞這麼多次仍然失敗, 轉入死信隊列並確認, 不再阻塞 pending-list
+    @Value("${hmdp.seckill.order-max-deliveries:10}")
+    private int maxDeliveries;
+
+    private ExecutorService seckillOrderExecutor;
+
+    // 消費速率統計
+    private final LongAdder drainedOrders = new LongAdder();
+    private final LongAdder drainedBatches = new LongAdder();
+    private final AtomicLong lastReportTime = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong lastReportCount = new AtomicLong();
+    private static final long REPORT_INTERVAL_MILLIS = 10_000L;
 
     // 當前類初始化後執行
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount + 1);
+        for (int i = 1; i <= consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler("c" + i));
+        }
+        // 分片秒殺券的訂單隊列由一個消費者輪詢
+        seckillOrderExecutor.submit(new ShardOrderHandler("s1"));
+    }
+
+    @PreDestroy
+    private void destroy(){
+        seckillOrderExecutor.shutdownNow();
     }
 
     private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
+        private final String consumerName;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while (true){
+            while (!Thread.currentThread().isInterrupted()){
                 try{
-                    // 1.獲取隊列中的訂單信息 XREADCROUP GROUP g1 c1 COUNT 1 BLOCK 2000 streams.order >
+                    // 1.獲取隊列中的訂單信息 XREADGROUP GROUP g1 cN COUNT batchSize BLOCK 2000 STREAMS stream.orders >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            Consumer.from(GROUP_NAME, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(QUEUE_NAME, ReadOffset.lastConsumed())
                     );
                     // 2.判斷消息獲取是否成功
                     if(list == null || list.isEmpty()){
                         // 如果獲取失敗, 說明沒有消息,　繼續下一次循環
                         continue;
                     }
-                    // 3.解析消息中的訂單信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4.如果獲取成功, 可以下單
-                    handleVoucherOrder(voucherOrder);
-                    // 5.ACK確認 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-
+                    // 3.整批下單並確認
+                    handleRecords(QUEUE_NAME, list);
                 }catch (Exception e){
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
                     log.error("處裡訂單異常", e);
-                    handlePendingList();
+                    handlePendingList(QUEUE_NAME, consumerName);
                 }
             }
         }
+    }
 
-        private void handlePendingList() {
-            while (true){
+    /**
+     * 輪詢所有分片秒殺券的訂單隊列, 新發現的隊列先創建消費者組並處理 pending-list
+     */
+    private class ShardOrderHandler implements Runnable{
+        private final String consumerName;
+        private final Set<String> knownStreams = new HashSet<>();
+
+        ShardOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()){
+                boolean idle = true;
                 try{
-                    // 1.獲取 pending-list 中的訂單信息 XREADCROUP CROUP g1 c1 COUNT 1 BLOCK 2000 streams.order 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            // 0 表示讀的部分為 pending-list
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    // 2.判斷消息獲取是否成功
-                    if(list == null || list.isEmpty()){
-                        // 如果獲取失敗, 說明 pending-list 沒有異常消息,　結束循環
-                        break;
+                    List<String> streams = seckillStockShards.allOrderStreamKeys();
+                    // 已經清除的隊列不再記錄
+                    knownStreams.retainAll(streams);
+                    for (String stream : streams) {
+                        idle &= !pollStream(stream);
                     }
-                    // 3.解析消息中的訂單信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4.如果獲取成功, 可以下單
-                    handleVoucherOrder(voucherOrder);
-                    // 5.ACK確認 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-
                 }catch (Exception e){
-                    log.error("處裡 pending-list 訂單異常", e);
+                    log.error("處裡分片訂單異常", e);
+                }
+                if(idle){
                     try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
+                        Thread.sleep(SHARD_POLL_IDLE_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
                     }
                 }
             }
         }
+
+        /**
+         * @return 是否讀到消息
+         */
+        private boolean pollStream(String stream) {
+            if(knownStreams.add(stream)){
+                createGroup(stream);
+                handlePendingList(stream, consumerName);
+            }
+            try{
+                // XREADGROUP GROUP g1 s1 COUNT batchSize STREAMS stream.orders:{voucherId:i} >
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(GROUP_NAME, consumerName),
+                        StreamReadOptions.empty().count(batchSize),
+                        StreamOffset.create(stream, ReadOffset.lastConsumed())
+                );
+                if(list == null || list.isEmpty()){
+                    return false;
+                }
+                handleRecords(stream, list);
+                return true;
+            }catch (Exception e){
+                log.error("處裡分片訂單異常, stream: {}", stream, e);
+                handlePendingList(stream, consumerName);
+                return false;
+            }
+        }
+
+        private void createGroup(String stream) {
+            // 從頭開始消費, 創建組之前腳本已經寫入的消息也能讀到; 隊列不存在時創建空隊列
+            try {
+                stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                        connection.streamCommands().xGroupCreate(bytes(stream), GROUP_NAME, ReadOffset.from("0"), true));
+            } catch (Exception e) {
+                // BUSYGROUP: 其他節點已經創建
+                log.debug("分片訂單隊列的消費者組已存在, stream: {}", stream);
+            }
+        }
+    }
+
+    private void handlePendingList(String stream, String consumerName) {
+        long retryMillis = PENDING_RETRY_MIN_MILLIS;
+        while (!Thread.currentThread().isInterrupted()){
+            List<MapRecord<String, Object, Object>> list = null;
+            try{
+                // 1.獲取 pending-list 中的訂單信息 XREADGROUP GROUP g1 cN COUNT batchSize STREAMS stream.orders 0
+                list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(GROUP_NAME, consumerName),
+                        StreamReadOptions.empty().count(batchSize),
+                        // 0 表示讀的部分為 pending-list
+                        StreamOffset.create(stream, ReadOffset.from("0"))
+                );
+                // 2.判斷消息獲取是否成功
+                if(list == null || list.isEmpty()){
+                    // 如果獲取失敗, 說明 pending-list 沒有異常消息,　結束循環
+                    break;
+                }
+                // 3.整批下單並確認
+                handleRecords(stream, list);
+            }catch (Exception e){
+                log.error("處裡 pending-list 訂單異常", e);
+                // 4.整批失敗時逐條處理, 找出無法處理的消息
+                if (list != null) {
+                    handleEach(stream, list);
+                }
+                // 5.等待後重試, 資料庫暫時不可用時不會很快用完投遞次數
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                retryMillis = Math.min(retryMillis * 2, PENDING_RETRY_MAX_MILLIS);
+            }
+        }
+    }
+
+    private void handleEach(String stream, List<MapRecord<String, Object, Object>> list) {
+        for (MapRecord<String, Object, Object> record : list) {
+            try {
+                handleRecords(stream, Collections.singletonList(record));
+            } catch (Exception e) {
+                deadLetterIfExhausted(stream, record, e);
+            }
+        }
+    }
+
+    /**
+     * 投遞次數達到上限的消息轉入死信隊列並確認, 其餘的留在 pending-list 等待重試
+     */
+    private void deadLetterIfExhausted(String stream, MapRecord<String, Object, Object> record, Exception cause) {
+        try {
+            // 1.查詢投遞次數 XPENDING stream.orders g1 id id 1
+            String id = record.getId().getValue();
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(stream, GROUP_NAME, Range.closed(id, id), 1L);
+            if (pending.isEmpty() || pending.get(0).getTotalDeliveryCount() < maxDeliveries) {
+                return;
+            }
+            // 2.寫入死信隊列, 保留原消息和來源, 之後人工處理
+            Map<String, String> message = new HashMap<>();
+            record.getValue().forEach((k, v) -> message.put(String.valueOf(k), String.valueOf(v)));
+            message.put("stream", stream);
+            message.put("recordId", id);
+            message.put("error", String.valueOf(cause.getMessage()));
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(SECKILL_ORDER_DEAD_STREAM).ofMap(message));
+            // 3.確認, 不再投遞
+            stringRedisTemplate.opsForStream().acknowledge(stream, GROUP_NAME, record.getId());
+            log.error("訂單消息投遞 {} 次仍然失敗, 轉入死信隊列, stream: {}, recordId: {}",
+                    pending.get(0).getTotalDeliveryCount(), stream, id, cause);
+        } catch (Exception e) {
+            log.error("訂單消息轉入死信隊列異常, stream: {}, recordId: {}", stream, record.getId(), e);
+        }
+    }
+
+    private void handleRecords(String stream, List<MapRecord<String, Object, Object>> list) {
+        // 1.跳過已經寫入資料庫的消息, 例如寫入後 XACK 前宕機而重新投遞的
+        List<MapRecord<String, Object, Object>> fresh = filterProcessed(stream, list);
+        // 2.解析消息中的訂單信息
+        List<VoucherOrder> orders = new ArrayList<>(fresh.size());
+        for (MapRecord<String, Object, Object> record : fresh) {
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        // 3.整批下單
+        if (!orders.isEmpty()) {
+            handleVoucherOrders(orders);
+        }
+        // 4.記錄已處理的消息, 並一次 XACK 確認整批 XACK stream.orders g1 id1 id2 ...
+        markProcessedAndAck(stream, list);
+        // 5.統計消費速率
+        recordDrained(list.size());
+    }
+
+    private List<MapRecord<String, Object, Object>> filterProcessed(String stream, List<MapRecord<String, Object, Object>> list) {
+        byte[] processedKey = bytes(SECKILL_ORDER_PROCESSED_KEY);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (MapRecord<String, Object, Object> record : list) {
+                connection.zSetCommands().zScore(processedKey, processedMember(stream, record.getId()));
+            }
+            return null;
+        });
+        List<MapRecord<String, Object, Object>> fresh = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            if (scores.get(i) == null) {
+                fresh.add(list.get(i));
+            } else {
+                log.warn("訂單消息已經處理過, recordId: {}", list.get(i).getId());
+            }
+        }
+        return fresh;
+    }
+
+    private void markProcessedAndAck(String stream, List<MapRecord<String, Object, Object>> list) {
+        byte[] processedKey = bytes(SECKILL_ORDER_PROCESSED_KEY);
+        long now = System.currentTimeMillis();
+        RecordId[] recordIds = list.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (RecordId recordId : recordIds) {
+                connection.zSetCommands().zAdd(processedKey, now, processedMember(stream, recordId));
+            }
+            // 只保留一段時間內的記錄, 更早的消息不會再被投遞
+            connection.zSetCommands().zRemRangeByScore(processedKey, 0, now - PROCESSED_RETENTION_MILLIS);
+            connection.streamCommands().xAck(bytes(stream), GROUP_NAME, recordIds);
+            return null;
+        });
+    }
+
+    /**
+     * 不同隊列的消息id可能相同, 分片隊列的記錄帶上隊列名
+     */
+    private static byte[] processedMember(String stream, RecordId recordId) {
+        return bytes(QUEUE_NAME.equals(stream) ? recordId.getValue() : stream + "-" + recordId.getValue());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void recordDrained(int count) {
+        drainedOrders.add(count);
+        drainedBatches.increment();
+        long now = System.currentTimeMillis();
+        long last = lastReportTime.get();
+        if (now - last < REPORT_INTERVAL_MILLIS || !lastReportTime.compareAndSet(last, now)) {
+            return;
+        }
+        long total = drainedOrders.sum();
+        long delta = total - lastReportCount.getAndSet(total);
+        log.info("訂單消費速率: {} 筆/秒, 累計 {} 筆, {} 批", delta * 1000 / (now - last), total, drainedBatches.sum());
+    }
+
+    /**
+     * 已寫入資料庫的訂單總數
+     */
+    public long getDrainedOrders() {
+        return drainedOrders.sum();
+    }
+
+    /**
+     * 已處理的批次總數
+     */
+    public long getDrainedBatches() {
+        return drainedBatches.sum();
     }
 
 //    private BlockingQueue<VoucherOrder>orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
@@ -160,53 +418,55 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 1.獲取用戶
-        Long userId = voucherOrder.getUserId();
-        // 2.創建鎖對象
-         RLock lock = redissonClient.getLock("lock:order:" + userId);
-        // 3.獲取鎖
-        boolean isLock = lock.tryLock();
-        // 4.判斷是否獲取鎖成功
-        if(!isLock){
-            // 獲取鎖失敗, 返回錯誤或重試
-            log.error("不允許重複下單");
-            return ;
-        }
-        try{
-            //因為為了讓子線程取得代理對象, 所以先放到常數變量中
-            proxy.createVoucherOrder(voucherOrder);
-        }finally {
-            // 釋放鎖
-            lock.unlock();
-        }
+    private void handleVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 一人一單已經由 seckill.lua 和資料庫的唯一索引保證, 不需要再為每個用戶加鎖
+        self.createVoucherOrders(voucherOrders);
     }
 
-    private IVoucherOrderService proxy;
-
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 0.准入控制: 已售罄或者請求過多時直接返回, 不訪問Redis
+        int admitted = seckillAdmission.tryAdmit(voucherId);
+        if(admitted != 0){
+            return Result.fail(admitted == 1 ? "庫存不足" : "搶購人數過多, 請稍後再試");
+        }
         // 獲取用戶
         Long userId = UserHolder.getUser().getId();
         // 獲取訂單id
         long orderId = redisIdWorker.nextId("order");
-        // 1.執行lua腳本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
+        // 1.執行lua腳本, 分片的秒殺券在用戶所在的分片扣庫存
+        int r;
+        if(seckillStockShards.isSharded(voucherId)){
+            r = seckillStockShards.seckill(voucherId, userId, orderId);
+        }else{
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                    String.valueOf(System.currentTimeMillis())
+            );
+            r = result.intValue();
+        }
         // 2.判斷結果是否為0
-        int r = result.intValue();
         if(r != 0){
-            // 2.1.不為0, 代表沒有購買資格
-            return Result.fail(r == 1 ? "庫存不足": "不能重複下單");
+            // 2.1.不為0, 代表沒有購買資格, 庫存不足時通知所有節點
+            switch (r){
+                case 1:
+                    seckillAdmission.markSoldOut(voucherId);
+                    return Result.fail("庫存不足");
+                case 2:
+                    return Result.fail("不能重複下單");
+                case 4:
+                    return Result.fail("秒殺已經結束!");
+                case 6:
+                    // 其他分片還有庫存, 不標記售罄
+                    return Result.fail("搶購人數過多, 請稍後再試");
+                default:
+                    return Result.fail("秒殺尚未開始!");
+            }
         }
 
-        // 3.獲取代理對象
-        proxy = (IVoucherOrderService)AopContext.currentProxy();
-        //
-        // 4.返回訂單id
+        // 3.返回訂單id
         return Result.ok(orderId);
     }
 
@@ -243,42 +503,6 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        //
 //        // 4.返回訂單id
 //        return Result.ok(orderId);
-//    }
-
-//    @Override
-//    public Result seckillVoucher(Long voucherId) {
-//        // 1.查詢優惠卷
-//        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
-//        // 2.判斷秒殺是否開始
-//        if(voucher.getBeginTime().isAfter(LocalDateTime.now())){
-//            return Result.fail("秒殺尚未開始!");
-//        }
-//        // 3.判斷秒殺是否已經結束
-//        if(voucher.getEndTime().isBefore(LocalDateTime.now())){
-//            return Result.fail("秒殺已經結束!");
-//        }
-//        // 4.判斷庫存是否充足
-//        if (voucher.getStock() < 1) {
-//            return Result.fail("庫存不足! ");
-//        }
-//        Long userId = UserHolder.getUser().getId();
-//        // 創建鎖對象
-//        //SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
-//        RLock lock = redissonClient.getLock("lock:order:" + userId);
-//        // 獲取鎖
-//        boolean isLock = lock.tryLock();
-//        if(!isLock){
-//            // 獲取鎖失敗, 返回錯誤或重試
-//            return Result.fail("不允許重複下單");
-//        }
-//        try{
-//            // 獲取代理對象 (事務)
-//            IVoucherOrderService proxy = (IVoucherOrderService)AopContext.currentProxy();
-//            return proxy.createVoucherOrder(voucherId);
-//        }finally {
-//            // 釋放鎖
-//            lock.unlock();
-//        }
 //    }
 
     @Transactional
@@ -308,4 +532,32 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 7.創建訂單
         save(voucherOrder);
     }
+
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1.按代金卷分組, 每個代金卷一條 INSERT 和一次扣庫存
+        Map<Long, List<VoucherOrder>> byVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            // 2.一人一單: INSERT IGNORE, 重複的訂單被唯一索引忽略
+            List<VoucherOrder> orders = entry.getValue();
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            if(inserted < orders.size()){
+                log.error("用戶已經購買過一次! voucherId: {}, 忽略 {} 筆", entry.getKey(), orders.size() - inserted);
+            }
+            if(inserted == 0){
+                continue;
+            }
+            // 3.按實際插入的數量扣減庫存, 重複投遞的消息不會重複扣減
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted) // set stock = stock - inserted
+                    .eq("voucher_id", entry.getKey()).ge("stock", inserted)
+                    .update(); // where voucher_id = ? and stock >= inserted
+            if(!success){
+                // Redis已經扣過庫存並通知用戶搶購成功, 訂單保留, 記錄庫存不一致
+                log.error("資料庫庫存不足! voucherId: {}, 數量: {}", entry.getKey(), inserted);
+            }
+        }
+    }
 }
@@ -1,5 +1,7 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,14 +9,19 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStockShards;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -33,14 +40,62 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillPreloader seckillPreloader;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 1.查詢店鋪優惠券列表的緩存, 只包含不變的屬性
+        String key = CACHE_VOUCHER_SHOP_KEY + shopId;
+        String json = stringRedisTemplate.opsForValue().get(key);
+        List<Voucher> vouchers;
+        if (StrUtil.isNotBlank(json)) {
+            vouchers = JSONUtil.toList(json, Voucher.class);
+        } else {
+            // 2.未命中, 查询优惠券信息並寫入緩存
+            vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(vouchers), CACHE_VOUCHER_SHOP_TTL, TimeUnit.MINUTES);
+        }
+        // 3.一次 MGET 讀取秒殺券的實時庫存
+        overlayStock(vouchers);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    private void overlayStock(List<Voucher> vouchers) {
+        // 只有秒殺券有庫存
+        List<Voucher> seckillVouchers = vouchers.stream()
+                .filter(v -> v.getStock() != null)
+                .collect(Collectors.toList());
+        if (seckillVouchers.isEmpty()) {
+            return;
+        }
+        List<Long> voucherIds = seckillVouchers.stream()
+                .map(Voucher::getId)
+                .collect(Collectors.toList());
+        // 分片的秒殺券為所有分片之和
+        List<Long> stocks = seckillStockShards.remaining(voucherIds);
+        for (int i = 0; i < seckillVouchers.size(); i++) {
+            Long stock = stocks.get(i);
+            // Redis中沒有庫存時保留資料庫的值
+            if (stock != null) {
+                seckillVouchers.get(i).setStock(stock.intValue());
+            }
+        }
+    }
+
+    @Override
+    @Transactional
+    public void addVoucher(Voucher voucher) {
+        // 保存优惠券
+        save(voucher);
+        // 刪除店鋪優惠券列表的緩存
+        invalidateShopVouchers(voucher.getShopId());
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -53,8 +108,24 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒殺庫存到Redis中
-        stringRedisTemplate.opsForValue().set("seckill:stock:" + voucher.getId(),
-                voucher.getStock().toString());
+        // 保存秒殺庫存和秒殺時間到Redis中, 庫存足夠多時拆分到多個分片
+        seckillPreloader.register(seckillVoucher);
+        // 刪除店鋪優惠券列表的緩存
+        invalidateShopVouchers(voucher.getShopId());
+    }
+
+    private void invalidateShopVouchers(Long shopId) {
+        String key = CACHE_VOUCHER_SHOP_KEY + shopId;
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            stringRedisTemplate.delete(key);
+            return;
+        }
+        // 事務提交後再刪除, 避免其他請求在提交前把舊列表重新寫入緩存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                stringRedisTemplate.delete(key);
+            }
+        });
     }
 }
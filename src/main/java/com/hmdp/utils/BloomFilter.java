@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 進程內的布隆過濾器, 位的排列和Redis的bitmap相同, 可以直接和 GET/SET 得到的字節數組互相轉換
+ * <p>
+ * 第n位位於第 n/8 個字節的第 7-n%8 位(最高位在前); 每個值用 MurmurHash 128 位的兩半做雙重哈希得到k個位置
+ * </p>
+ */
+public class BloomFilter {
+
+    // Redis字符串最大512MB
+    private static final long MAX_BITS = 1L << 32;
+
+    private final long numBits;
+    private final int numHashes;
+    private final byte[] bits;
+
+    public BloomFilter(long numBits, int numHashes) {
+        this(numBits, numHashes, new byte[(int) ((numBits + 7) / 8)]);
+    }
+
+    /**
+     * @param bits Redis中的bitmap, 比 numBits 短時後面補0
+     */
+    public BloomFilter(long numBits, int numHashes, byte[] bits) {
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+        int length = (int) ((numBits + 7) / 8);
+        if (bits.length == length) {
+            this.bits = bits;
+        } else {
+            this.bits = new byte[length];
+            System.arraycopy(bits, 0, this.bits, 0, Math.min(bits.length, length));
+        }
+    }
+
+    /**
+     * 按預計數量和誤判率計算位數和哈希次數
+     * @param expectedInsertions 預計插入的數量
+     * @param fpp 誤判率
+     */
+    public static BloomFilter create(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        m = Math.min(MAX_BITS, Math.max(64, m));
+        int k = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+        return new BloomFilter(m, k);
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * 值對應的k個位置, 也用於 SETBIT
+     */
+    public long[] offsets(String value) {
+        long[] hash = MurmurHash.hash128(value.getBytes(StandardCharsets.UTF_8));
+        long[] offsets = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = Math.floorMod(hash[0] + i * hash[1], numBits);
+        }
+        return offsets;
+    }
+
+    public void put(String value) {
+        for (long offset : offsets(value)) {
+            int index = (int) (offset >>> 3);
+            synchronized (this) {
+                bits[index] |= (byte) (0x80 >>> (offset & 7));
+            }
+        }
+    }
+
+    public boolean mightContain(String value) {
+        for (long offset : offsets(value)) {
+            if ((bits[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 寫入Redis用的字節數組
+     */
+    public synchronized byte[] toByteArray() {
+        return bits.clone();
+    }
+}
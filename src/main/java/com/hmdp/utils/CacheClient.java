@@ -1,19 +1,46 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
 import com.hmdp.entity.Shop;
+import com.hmdp.utils.codec.*;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -23,152 +50,794 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    // 邏輯過期的重建線程池
+    private final CacheRebuildScheduler rebuildScheduler;
+
+    // 按key前綴開啟的本地一級緩存
+    private final Map<String, LocalCache> localCaches = new ConcurrentHashMap<>();
+    // 按key前綴判斷id是否可能存在, 一定不存在的id不訪問Redis和資料庫
+    private final Map<String, Predicate<Object>> bloomFilters = new ConcurrentHashMap<>();
+    private final LongAdder bloomRejectedCount = new LongAdder();
+
+    // 互斥鎖重建: 正在進行中的重建, 以及重建失敗時可以返回的舊值
+    private static final long MUTEX_WAIT_MILLIS = 1000L;
+    private static final long MUTEX_RETRY_INTERVAL_MILLIS = 50L;
+    private static final int STALE_VALUE_SIZE = 10000;
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+    private final LRUCache<String, Object> staleValues = CacheUtil.newLRUCache(STALE_VALUE_SIZE);
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder staleFallbackCount = new LongAdder();
+
+    // 各類型的序列化方式, 未註冊的類型使用JSON
+    private final Map<Class<?>, CacheCodec<?>> codecs = new ConcurrentHashMap<>();
+    // 邏輯過期的值: 標記(1字節) + 過期時間的毫秒數(8字節) + 重建耗時的毫秒數(4字節) + 對象
+    private static final byte LOGICAL_EXPIRE_HEADER = 0x02;
+    private static final int LOGICAL_EXPIRE_HEADER_LENGTH = 13;
+    // 沒有重建耗時的舊格式
+    private static final byte LOGICAL_EXPIRE_HEADER_V1 = 0x01;
+    private static final int LOGICAL_EXPIRE_HEADER_V1_LENGTH = 9;
+
+    // 寫入前比較key的版本, 讀取資料庫之後key被失效過就放棄寫入; 失效時版本加一並刪除key
+    private static final DefaultRedisScript<Long> CACHE_SET_SCRIPT;
+    private static final DefaultRedisScript<Long> CACHE_INVALIDATE_SCRIPT;
+    private static final RedisSerializer<Long> LONG_SERIALIZER = new GenericToStringSerializer<>(Long.class);
+    static {
+        CACHE_SET_SCRIPT = new DefaultRedisScript<>();
+        CACHE_SET_SCRIPT.setLocation(new ClassPathResource("cache_set.lua"));
+        CACHE_SET_SCRIPT.setResultType(Long.class);
+        CACHE_INVALIDATE_SCRIPT = new DefaultRedisScript<>();
+        CACHE_INVALIDATE_SCRIPT.setLocation(new ClassPathResource("cache_invalidate.lua"));
+        CACHE_INVALIDATE_SCRIPT.setResultType(Long.class);
+    }
+    private final LongAdder staleWriteRejectedCount = new LongAdder();
+
+    // 寫入時有效期隨機增加的比例, 避免同時寫入的key同時過期
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter = 0.1;
+    // 提前重建的積極程度, 越大越早重建, 0表示過期後才重建
+    @Value("${hmdp.cache.early-refresh-beta:1.0}")
+    private double earlyRefreshBeta = 1.0;
+    private final LongAdder earlyRefreshCount = new LongAdder();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this(stringRedisTemplate, listenerContainer, 10, 1000);
+    }
+
+    @Autowired
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                       @Value("${hmdp.cache.rebuild-threads:10}") int rebuildThreads,
+                       @Value("${hmdp.cache.rebuild-queue-capacity:1000}") int rebuildQueueCapacity) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.rebuildScheduler = new CacheRebuildScheduler(rebuildThreads, rebuildQueueCapacity);
+        // 熱點實體使用二進位序列化
+        registerCodec(Shop.class, new ShopCodec());
+        registerCodec(Blog.class, new BlogCodec());
+        registerCodec(UserDTO.class, new UserDTOCodec());
+        // 訂閱失效通知, 清除本節點的一級緩存
+        listenerContainer.addMessageListener(
+                (message, pattern) -> invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    @PreDestroy
+    public void destroy(){
+        rebuildScheduler.shutdown();
+    }
+
+    /**
+     * 重建線程池, 可以讀取排隊數、重建耗時、失敗和拒絕次數
+     */
+    public CacheRebuildScheduler getRebuildScheduler(){
+        return rebuildScheduler;
+    }
+
+    /**
+     * 為某個key前綴開啟本地一級緩存, 之後所有 queryWith* 對該前綴都會先查本地
+     * @param keyPrefix key前綴
+     * @param maxSize 最多緩存的key數量
+     * @param time 本地緩存的存活時間
+     */
+    public void enableLocalCache(String keyPrefix, int maxSize, Long time, TimeUnit unit){
+        localCaches.put(keyPrefix, new LocalCache(maxSize, unit.toMillis(time)));
+    }
+
+    /**
+     * 為某個key前綴開啟布隆過濾器, 之後所有 queryWith* 對該前綴都會先判斷id是否可能存在
+     * @param keyPrefix key前綴
+     * @param mightExist 返回false表示id一定不存在
+     */
+    public void enableBloomFilter(String keyPrefix, Predicate<Object> mightExist){
+        bloomFilters.put(keyPrefix, mightExist);
+    }
+
+    private boolean mightExist(String keyPrefix, Object id){
+        Predicate<Object> mightExist = bloomFilters.get(keyPrefix);
+        if(mightExist == null || mightExist.test(id)){
+            return true;
+        }
+        bloomRejectedCount.increment();
+        return false;
+    }
+
+    public LocalCache getLocalCache(String keyPrefix){
+        return localCaches.get(keyPrefix);
+    }
+
+    /**
+     * 指定某個類型寫入緩存時的序列化方式, 讀取時仍然兼容舊的JSON格式
+     */
+    public <T> void registerCodec(Class<T> type, CacheCodec<T> codec){
+        codecs.put(type, codec);
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
-       stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, encode(value), jitter(time, unit), TimeUnit.MILLISECONDS);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
-        //設置過期時間
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        setWithLogicalExpire(key, value, time, unit, 0);
+    }
 
+    private void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, long rebuildMillis){
+        //設置過期時間, 批量預熱的key也不會同時過期
+        long expireMillis = System.currentTimeMillis() + jitter(time, unit);
         //寫入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setRaw(key, encodeLogical(value, expireMillis, rebuildMillis), null, null);
+    }
+
+    /**
+     * key的版本, 在查詢資料庫之前讀取, 寫入時用於比較
+     */
+    private String getVersion(String key){
+        String version = stringRedisTemplate.opsForValue().get(versionKey(key));
+        return version == null ? "0" : version;
+    }
+
+    /**
+     * 版本key和緩存key使用相同的hash tag, 集群下在同一個slot
+     */
+    private static String versionKey(String key){
+        return "{" + key + "}" + CACHE_VERSION_SUFFIX;
+    }
+
+    /**
+     * 版本沒有變化時才寫入, 防止讀取資料庫之後提交的更新被舊數據覆蓋
+     * @param version 查詢資料庫之前讀取的版本
+     * @param value 空數組表示空值
+     * @param ttlMillis 有效期, 0表示永不過期
+     * @return 是否寫入
+     */
+    private boolean setIfVersion(String key, String version, byte[] value, long ttlMillis){
+        Long result = stringRedisTemplate.execute(CACHE_SET_SCRIPT, RedisSerializer.byteArray(), LONG_SERIALIZER,
+                Arrays.asList(key, versionKey(key)), (Object[]) cacheSetArgs(version, value, ttlMillis));
+        return written(result);
+    }
+
+    private static byte[][] cacheSetArgs(String version, byte[] value, long ttlMillis){
+        return new byte[][]{
+                version.getBytes(StandardCharsets.UTF_8),
+                value,
+                Long.toString(ttlMillis).getBytes(StandardCharsets.UTF_8)
+        };
+    }
+
+    private boolean written(Object result){
+        if(result instanceof Long && (Long) result == 1L){
+            return true;
+        }
+        staleWriteRejectedCount.increment();
+        return false;
+    }
+
+    private long nullTtl(){
+        return jitter(CACHE_NULL_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 有效期隨機增加 0 ~ ttlJitter 的比例, 單位毫秒
+     */
+    private long jitter(Long time, TimeUnit unit){
+        long millis = unit.toMillis(time);
+        if(ttlJitter <= 0){
+            return millis;
+        }
+        return millis + (long) (millis * ttlJitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CacheCodec<T> codecOf(Class<T> type){
+        return (CacheCodec<T>) codecs.computeIfAbsent(type, t -> new JsonCacheCodec<>(t));
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] encode(Object value){
+        return ((CacheCodec<Object>) codecOf(value.getClass())).encode(value);
+    }
+
+    private <R> R decode(byte[] bytes, Class<R> type){
+        CacheCodec<R> codec = codecOf(type);
+        if(codec.supports(bytes)){
+            return codec.decode(bytes);
+        }
+        // 切換序列化方式之前寫入的JSON
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    private byte[] encodeLogical(Object value, long expireMillis, long rebuildMillis){
+        byte[] payload = value == null ? new byte[0] : encode(value);
+        return ByteBuffer.allocate(LOGICAL_EXPIRE_HEADER_LENGTH + payload.length)
+                .put(LOGICAL_EXPIRE_HEADER)
+                .putLong(expireMillis)
+                .putInt((int) Math.min(Integer.MAX_VALUE, rebuildMillis))
+                .put(payload)
+                .array();
+    }
+
+    private <R> RedisData decodeLogical(byte[] bytes, Class<R> type){
+        RedisData redisData;
+        if(bytes[0] == LOGICAL_EXPIRE_HEADER || bytes[0] == LOGICAL_EXPIRE_HEADER_V1){
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            byte header = buffer.get();
+            long expireMillis = buffer.getLong();
+            int headerLength = LOGICAL_EXPIRE_HEADER_V1_LENGTH;
+            redisData = new RedisData();
+            if(header == LOGICAL_EXPIRE_HEADER){
+                redisData.setRebuildMillis(buffer.getInt());
+                headerLength = LOGICAL_EXPIRE_HEADER_LENGTH;
+            }
+            byte[] payload = Arrays.copyOfRange(bytes, headerLength, bytes.length);
+            redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()));
+            redisData.setData(payload.length == 0 ? null : decode(payload, type));
+        }else{
+            // 舊格式: RedisData 的JSON, 需要兩次反序列化
+            redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+            redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+        }
+        return redisData;
+    }
+
+    private byte[] getRaw(String key){
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute(
+                (RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+    }
+
+    private void setRaw(String key, byte[] value, Long time, TimeUnit unit){
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, unit);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands()
+                .set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    /**
+     * 刪除緩存並把版本加一, 並通知所有節點清除一級緩存;
+     * 應在資料庫事務提交之後調用, 之前已經開始查詢資料庫的請求不會再把舊數據寫回
+     */
+    public void delete(String key){
+        stringRedisTemplate.execute(CACHE_INVALIDATE_SCRIPT, Arrays.asList(key, versionKey(key)),
+                String.valueOf(TimeUnit.MINUTES.toMillis(CACHE_VERSION_TTL)));
+        invalidateEverywhere(key);
+    }
+
+    private LocalCache localCacheOf(String key){
+        for (Map.Entry<String, LocalCache> entry : localCaches.entrySet()) {
+            if(key.startsWith(entry.getKey())){
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private Object getLocal(String key){
+        LocalCache localCache = localCacheOf(key);
+        return localCache == null ? null : localCache.get(key);
+    }
+
+    private void putLocal(String key, Object value){
+        LocalCache localCache = localCacheOf(key);
+        if(localCache != null){
+            localCache.put(key, value);
+        }
+    }
+
+    private void invalidateLocal(String key){
+        LocalCache localCache = localCacheOf(key);
+        if(localCache != null){
+            localCache.invalidate(key);
+        }
+    }
+
+    private void invalidateEverywhere(String key){
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
     }
 
     // 緩存穿透
     public <R, ID>R queryWithPassThrough(
             String keyPrefix, ID id, Class<R>type, Function<ID, R>dbFallback, Long time, TimeUnit unit){
+        // 布隆過濾器判斷id一定不存在, 直接返回
+        if(!mightExist(keyPrefix, id)){
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.先查本地緩存
+        Object local = getLocal(key);
+        if(local != null){
+            return local == LocalCache.NULL_VALUE ? null : type.cast(local);
+        }
         // 1.從redis查詢商鋪緩存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
         // 2.判斷是否存在
-        if(StrUtil.isNotBlank(json)){
+        if(bytes != null && bytes.length > 0){
             // 3.存在, 直接返回
-            return JSONUtil.toBean(json, type);
+            R r = decode(bytes, type);
+            putLocal(key, r);
+            return r;
         }
-        if(json !=null){
+        if(bytes !=null){
             // 返回一個錯誤信息
+            putLocal(key, null);
             return null;
         }
-        // 4.不存在, 根據id查詢資料庫
+        // 4.不存在, 先讀取版本, 再根據id查詢資料庫
+        String version = getVersion(key);
         R r = dbFallback.apply(id);
         // 5.不存在, 返回錯誤
         if(r == null){
-            // 將空值寫入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            // 將空值寫入redis, 期間被失效過則不寫入
+            if(setIfVersion(key, version, new byte[0], nullTtl())){
+                putLocal(key, null);
+            }
             // 返回錯誤信息
             return null;
         }
-        // 6.存在, 寫入redis
-        this.set(key, r, time, unit);
+        // 6.存在, 寫入redis, 期間被失效過則不寫入
+        if(setIfVersion(key, version, encode(r), jitter(time, unit))){
+            putLocal(key, r);
+        }
         // 7.返回
         return r;
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     public <R, ID>R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R>type, Function<ID, R>dbFallback, Long time, TimeUnit unit){
-        String key = keyPrefix + id;
-        // 1.從redis查詢商鋪緩存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2.判斷是否存在
-        if(StrUtil.isBlank(json)){
-            // 3.不存在, 直接返回null
+        // 布隆過濾器判斷id一定不存在, 直接返回
+        if(!mightExist(keyPrefix, id)){
             return null;
         }
-        // 4.命中, 需要先把json反序列化為對象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 5.判斷是否過期
-        if(expireTime.isAfter(LocalDateTime.now())){
-            // 5.1.未過期, 直接返回店鋪信息
+        String key = keyPrefix + id;
+        // 0.先查本地緩存, 本地存的是已經反序列化的對象和邏輯過期時間;
+        // 同一個前綴的 queryWithPassThrough 可能存了空值或者對象, 不是 RedisData 時查詢Redis
+        Object local = getLocal(key);
+        RedisData redisData = local instanceof RedisData ? (RedisData) local : null;
+        if(redisData == null){
+            // 1.從redis查詢商鋪緩存
+            byte[] bytes = getRaw(key);
+            // 2.判斷是否存在
+            if(bytes == null || bytes.length == 0){
+                // 3.不存在, 直接返回null
+                return null;
+            }
+            // 4.命中, 讀出邏輯過期時間並反序列化為對象
+            redisData = decodeLogical(bytes, type);
+            putLocal(key, redisData);
+        }
+        return serveLogical(key, id, redisData, type, dbFallback, time, unit);
+    }
+
+    /**
+     * 返回邏輯過期緩存中的對象, 需要時提交重建
+     */
+    private <R, ID>R serveLogical(
+            String key, ID id, RedisData redisData, Class<R>type, Function<ID, R>dbFallback, Long time, TimeUnit unit){
+        R r = type.cast(redisData.getData());
+        // 訪問次數決定重建的優先級
+        rebuildScheduler.recordAccess(key);
+        long expireMillis = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long now = System.currentTimeMillis();
+        // 5.判斷是否需要重建: 過期後一定重建, 過期前按重建耗時和剩餘時間隨機提前重建(XFetch)
+        if(!shouldRefresh(now, expireMillis, redisData.getRebuildMillis())){
+            // 5.1.不需要, 直接返回店鋪信息
             return r;
         }
-        // 5.2.已過期, 需要緩存重建
+        // 5.2.需要緩存重建
+        if(now < expireMillis){
+            earlyRefreshCount.increment();
+        }
         // 6.緩存重建
         // 6.1.獲取互斥鎖
         String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
+        // 本節點已經在重建, 不再搶鎖
+        boolean isLock = !rebuildScheduler.isPending(key) && tryLock(lockKey);
         // 6.2.判斷是否獲取成功
         if(isLock){
-            // 6.3.成功, 開始獨立線程, 實現緩存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
+            // 6.3.成功, 提交到重建線程池, 實現緩存重建; 異常由線程池記錄
+            boolean submitted = rebuildScheduler.submit(key, ()->{
                 // 重建緩存
                 try {
-                    // 查詢資料庫
+                    // 查詢資料庫, 記錄耗時用於下次提前重建
+                    String version = getVersion(key);
+                    long begin = System.currentTimeMillis();
                     R newR = dbFallback.apply(id);
-                    // 寫入redis
-                    this.setWithLogicalExpire(key, newR, time, unit);
-                } catch (Exception e) {
-                    throw  new RuntimeException(e);
+                    long rebuildMillis = System.currentTimeMillis() - begin;
+                    // 寫入redis, 期間被失效過則不寫入
+                    long newExpireMillis = System.currentTimeMillis() + jitter(time, unit);
+                    if(setIfVersion(key, version, encodeLogical(newR, newExpireMillis, rebuildMillis), 0)){
+                        // 通知所有節點丟棄舊的一級緩存
+                        invalidateEverywhere(key);
+                    }
                 } finally {
                     //釋放鎖
                     unlock(lockKey);
                 }
             });
+            if(!submitted){
+                // 隊列已滿或者已經在排隊, 釋放鎖, 下次訪問再嘗試
+                unlock(lockKey);
+            }
         }
         // 6.4. 返回過期的商城信息
         return r;
     }
 
+    /**
+     * 批量查詢, 語義和 queryWithPassThrough 相同: 一次 MGET 讀取所有key, 未命中的id一次查詢資料庫,
+     * 再用一次 pipeline 寫回, 不存在的id寫入空值
+     * @param batchDbFallback 按id批量查詢資料庫, 返回 id -> 對象
+     * @return 按ids的順序, 不存在的id不包含在結果中
+     */
+    public <R, ID>List<R> queryBatch(
+            String keyPrefix, List<ID> ids, Class<R>type, Function<List<ID>, Map<ID, R>> batchDbFallback,
+            Long time, TimeUnit unit){
+        return queryBatch(keyPrefix, ids, type, batchDbFallback, time, unit, false);
+    }
+
+    /**
+     * 批量查詢, 語義和 queryWithLogicalExpire 相同: 未命中的id直接返回null, 過期的key提交重建並返回舊值
+     */
+    public <R, ID>List<R> queryBatchWithLogicalExpire(
+            String keyPrefix, List<ID> ids, Class<R>type, Function<List<ID>, Map<ID, R>> batchDbFallback,
+            Long time, TimeUnit unit){
+        return queryBatch(keyPrefix, ids, type, batchDbFallback, time, unit, true);
+    }
+
+    private <R, ID>List<R> queryBatch(
+            String keyPrefix, List<ID> ids, Class<R>type, Function<List<ID>, Map<ID, R>> batchDbFallback,
+            Long time, TimeUnit unit, boolean logicalExpire){
+        Object[] values = new Object[ids.size()];
+        // 1.布隆過濾器和本地緩存, 剩下的id需要查詢Redis
+        List<Integer> remoteIndexes = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            ID id = ids.get(i);
+            if(!mightExist(keyPrefix, id)){
+                continue;
+            }
+            Object local = getLocal(keyPrefix + id);
+            if(logicalExpire){
+                // 和 queryWithLogicalExpire 一致, 本地緩存不是 RedisData 時查詢Redis
+                if(local instanceof RedisData){
+                    values[i] = serveLogical(keyPrefix + id, id, (RedisData) local, type, single(batchDbFallback), time, unit);
+                }else{
+                    remoteIndexes.add(i);
+                }
+            }else if(local == null){
+                remoteIndexes.add(i);
+            }else if(local != LocalCache.NULL_VALUE){
+                values[i] = type.cast(local);
+            }
+        }
+        if(remoteIndexes.isEmpty()){
+            return collect(values, type);
+        }
+        // 2.一次 MGET 查詢Redis
+        byte[][] rawKeys = new byte[remoteIndexes.size()][];
+        for (int i = 0; i < remoteIndexes.size(); i++) {
+            rawKeys[i] = (keyPrefix + ids.get(remoteIndexes.get(i))).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> cached = stringRedisTemplate.execute(
+                (RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+        Set<ID> missSet = new LinkedHashSet<>();
+        for (int i = 0; i < remoteIndexes.size(); i++) {
+            int index = remoteIndexes.get(i);
+            ID id = ids.get(index);
+            String key = keyPrefix + id;
+            byte[] bytes = cached == null ? null : cached.get(i);
+            if(bytes == null){
+                // 3.未命中, 邏輯過期的key由預熱寫入, 直接返回null
+                if(!logicalExpire){
+                    missSet.add(id);
+                }
+            }else if(bytes.length == 0){
+                // 空值, 邏輯過期的key不在本地緩存空值, 和 queryWithLogicalExpire 一致
+                if(!logicalExpire){
+                    putLocal(key, null);
+                }
+            }else if(logicalExpire){
+                RedisData redisData = decodeLogical(bytes, type);
+                putLocal(key, redisData);
+                values[index] = serveLogical(key, id, redisData, type, single(batchDbFallback), time, unit);
+            }else{
+                R r = decode(bytes, type);
+                putLocal(key, r);
+                values[index] = r;
+            }
+        }
+        if(missSet.isEmpty()){
+            return collect(values, type);
+        }
+        List<ID> missIds = new ArrayList<>(missSet);
+        // 4.先讀取版本, 再把未命中的id一次查詢資料庫
+        List<String> versionKeys = new ArrayList<>(missIds.size());
+        for (ID id : missIds) {
+            versionKeys.add(versionKey(keyPrefix + id));
+        }
+        List<String> versions = stringRedisTemplate.opsForValue().multiGet(versionKeys);
+        Map<ID, R> loaded = batchDbFallback.apply(missIds);
+        // 5.一次 pipeline 寫回, 不存在的id寫入空值, 期間被失效過的key不寫入
+        List<byte[][]> writes = new ArrayList<>(missIds.size());
+        for (int i = 0; i < missIds.size(); i++) {
+            String key = keyPrefix + missIds.get(i);
+            R r = loaded.get(missIds.get(i));
+            String version = versions == null || versions.get(i) == null ? "0" : versions.get(i);
+            byte[][] args = cacheSetArgs(version, r == null ? new byte[0] : encode(r), r == null ? nullTtl() : jitter(time, unit));
+            writes.add(new byte[][]{
+                    key.getBytes(StandardCharsets.UTF_8),
+                    versionKeys.get(i).getBytes(StandardCharsets.UTF_8),
+                    args[0], args[1], args[2]
+            });
+        }
+        List<Object> results;
+        try {
+            results = pipelineCacheSet(writes, true);
+        } catch (RuntimeException e) {
+            if(!isNoScript(e)){
+                throw e;
+            }
+            // 腳本還沒有載入, 用 EVAL 重試一次, EVAL 會載入腳本, 之後的 EVALSHA 可以命中
+            results = pipelineCacheSet(writes, false);
+        }
+        for (int i = 0; i < missIds.size(); i++) {
+            if(written(results.get(i))){
+                putLocal(keyPrefix + missIds.get(i), loaded.get(missIds.get(i)));
+            }
+        }
+        for (int index : remoteIndexes) {
+            if(values[index] == null){
+                values[index] = loaded.get(ids.get(index));
+            }
+        }
+        return collect(values, type);
+    }
+
+    /**
+     * 一次 pipeline 執行多個 cache_set.lua
+     * @param sha true: EVALSHA, 只發送腳本的SHA1; false: EVAL, 發送整個腳本
+     */
+    private List<Object> pipelineCacheSet(List<byte[][]> writes, boolean sha){
+        byte[] script = sha ? null : CACHE_SET_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[][] keysAndArgs : writes) {
+                if(sha){
+                    connection.scriptingCommands().evalSha(CACHE_SET_SCRIPT.getSha1(), ReturnType.INTEGER, 2, keysAndArgs);
+                }else{
+                    connection.scriptingCommands().eval(script, ReturnType.INTEGER, 2, keysAndArgs);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static boolean isNoScript(Throwable e){
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if(t.getMessage() != null && t.getMessage().contains("NOSCRIPT")){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <R, ID>Function<ID, R> single(Function<List<ID>, Map<ID, R>> batchDbFallback){
+        return id -> batchDbFallback.apply(Collections.singletonList(id)).get(id);
+    }
+
+    private static <R>List<R> collect(Object[] values, Class<R> type){
+        List<R> list = new ArrayList<>(values.length);
+        for (Object value : values) {
+            if(value != null){
+                list.add(type.cast(value));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * XFetch: now - rebuildMillis * beta * ln(rand) >= expireMillis 時重建,
+     * 重建越慢、離過期越近, 提前重建的概率越大; 各節點各請求獨立隨機, 重建在過期前分散開
+     */
+    private boolean shouldRefresh(long now, long expireMillis, long rebuildMillis){
+        if(now >= expireMillis){
+            return true;
+        }
+        if(rebuildMillis <= 0 || earlyRefreshBeta <= 0){
+            return false;
+        }
+        double rand = ThreadLocalRandom.current().nextDouble();
+        return now - rebuildMillis * earlyRefreshBeta * Math.log(rand) >= expireMillis;
+    }
+
     public <R, ID>R queryWithMutex(
             String keyPrefix, ID id, Class<R>type,  Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        // 布隆過濾器判斷id一定不存在, 直接返回
+        if(!mightExist(keyPrefix, id)){
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.先查本地緩存
+        Object local = getLocal(key);
+        if(local != null){
+            return local == LocalCache.NULL_VALUE ? null : type.cast(local);
+        }
         // 1.從redis查詢商鋪緩存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
         // 2.判斷是否存在
-        if(StrUtil.isNotBlank(shopJson)){
+        if(bytes != null && bytes.length > 0){
             // 3.存在, 直接返回
-            return JSONUtil.toBean(shopJson, type);
+            R r = decode(bytes, type);
+            putLocal(key, r);
+            staleValues.put(key, r);
+            return r;
         }
-        if(shopJson !=null){
+        if(bytes !=null){
             // 返回一個錯誤信息
+            putLocal(key, null);
             return null;
         }
-        // 4.實現緩存重建
-        // 4.1.獲取互斥鎖
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+        // 4.實現緩存重建, 同一個JVM內同一個key只有一個請求(leader)去重建, 其他請求共享它的結果
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightLoads.putIfAbsent(key, call);
+        if(inFlight != null){
+            // 4.1.已經有請求在重建, 等待它的結果
+            coalescedCount.increment();
+            return type.cast(awaitInFlight(key, inFlight));
+        }
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判斷是否獲取成功
-            if(!isLock){
-                // 4.3.失敗, 則休眠並重試
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
-            }
-
-            // 4.4.成功, 根據id查詢資料庫
-            r = dbFallback.apply(id);
-            // 模擬重建的延遲
-            Thread.sleep(200);
-            // 5.不存在, 返回錯誤
-            if(r == null){
-                // 將空值寫入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回錯誤信息
-                return null;
-            }
-            // 6.存在，写入redis
-            this.set(key, r, time, unit);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            // 4.2.成為leader, 跨節點仍然需要互斥鎖
+            R r = loadWithMutex(key, id, type, dbFallback, time, unit);
+            call.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            call.completeExceptionally(e);
+            throw e;
         } finally {
-            // 7.釋放互斥鎖
-            unlock(lockKey);
+            inFlightLoads.remove(key, call);
         }
-        // 8.返回
+    }
+
+    private <R, ID>R loadWithMutex(
+            String key, ID id, Class<R>type,  Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        String lockKey = LOCK_SHOP_KEY + id;
+        long deadline = System.currentTimeMillis() + MUTEX_WAIT_MILLIS;
+        while (true) {
+            // 4.3.獲取互斥鎖
+            if(tryLock(lockKey)){
+                try {
+                    // 4.4.再次檢查redis, 可能其他節點剛重建完
+                    byte[] bytes = getRaw(key);
+                    if(bytes != null){
+                        return fromCached(key, bytes, type);
+                    }
+                    // 4.5.成功, 先讀取版本, 再根據id查詢資料庫
+                    String version = getVersion(key);
+                    R r = dbFallback.apply(id);
+                    // 5.不存在, 返回錯誤
+                    if(r == null){
+                        // 將空值寫入redis, 期間被失效過則不寫入
+                        if(setIfVersion(key, version, new byte[0], nullTtl())){
+                            putLocal(key, null);
+                        }
+                        // 返回錯誤信息
+                        return null;
+                    }
+                    // 6.存在，写入redis, 期間被失效過則不寫入
+                    if(setIfVersion(key, version, encode(r), jitter(time, unit))){
+                        putLocal(key, r);
+                    }
+                    staleValues.put(key, r);
+                    return r;
+                } finally {
+                    // 7.釋放互斥鎖
+                    unlock(lockKey);
+                }
+            }
+            // 4.6.其他節點正在重建, 等待有上限, 超時就返回舊值
+            if(System.currentTimeMillis() >= deadline){
+                return type.cast(staleOrNull(key));
+            }
+            try {
+                Thread.sleep(MUTEX_RETRY_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return type.cast(staleOrNull(key));
+            }
+            byte[] bytes = getRaw(key);
+            if(bytes != null){
+                return fromCached(key, bytes, type);
+            }
+        }
+    }
+
+    private <R> R fromCached(String key, byte[] bytes, Class<R> type){
+        if(bytes.length == 0){
+            putLocal(key, null);
+            return null;
+        }
+        R r = decode(bytes, type);
+        putLocal(key, r);
+        staleValues.put(key, r);
         return r;
     }
 
+    private Object awaitInFlight(String key, CompletableFuture<Object> inFlight){
+        try {
+            return inFlight.get(MUTEX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return staleOrNull(key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return staleOrNull(key);
+        } catch (ExecutionException e) {
+            Object stale = staleValues.get(key, false);
+            if(stale == null){
+                throw new RuntimeException(e.getCause());
+            }
+            staleFallbackCount.increment();
+            return stale;
+        }
+    }
+
+    private Object staleOrNull(String key){
+        Object stale = staleValues.get(key, false);
+        if(stale != null){
+            staleFallbackCount.increment();
+        }
+        return stale;
+    }
+
+    /**
+     * 共享其他請求重建結果的次數
+     */
+    public long getCoalescedCount(){
+        return coalescedCount.sum();
+    }
+
+    /**
+     * 等待超時或重建失敗後返回舊值的次數
+     */
+    public long getStaleFallbackCount(){
+        return staleFallbackCount.sum();
+    }
+
+    /**
+     * 邏輯過期之前提前重建的次數
+     */
+    public long getEarlyRefreshCount(){
+        return earlyRefreshCount.sum();
+    }
+
+    /**
+     * 讀取資料庫之後key被失效過, 放棄寫回舊數據的次數
+     */
+    public long getStaleWriteRejectedCount(){
+        return staleWriteRejectedCount.sum();
+    }
+
+    /**
+     * 被布隆過濾器攔截的次數
+     */
+    public long getBloomRejectedCount(){
+        return bloomRejectedCount.sum();
+    }
+
     private boolean tryLock(String key){
         //10秒
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
@@ -0,0 +1,220 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 緩存重建的線程池
+ * <p>
+ * 1.有界: 排隊的任務達到上限後拒絕, 調用方繼續返回舊值;
+ * 2.去重: 同一個key在排隊或者執行中時不重複提交;
+ * 3.優先級: 按key的訪問次數排隊, 越熱的key越先重建, 訪問次數定期減半, 只反映最近的熱度;
+ * 4.統計: 排隊數、重建耗時、失敗和拒絕次數
+ * </p>
+ */
+@Slf4j
+public class CacheRebuildScheduler {
+
+    private final int queueCapacity;
+    private final int maxTrackedKeys;
+    private final ThreadPoolExecutor executor;
+
+    // 排隊或者執行中的key
+    private final Map<String, Boolean> pendingKeys = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    // 每個key的訪問次數
+    private final Map<String, LongAdder> accessCounts = new ConcurrentHashMap<>();
+    private final ReentrantLock decayLock = new ReentrantLock();
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder deduplicatedCount = new LongAdder();
+    private final LongAdder totalLatencyMillis = new LongAdder();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    /**
+     * @param threads 重建線程數
+     * @param queueCapacity 最多排隊的任務數
+     */
+    public CacheRebuildScheduler(int threads, int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        this.maxTrackedKeys = Math.max(1000, queueCapacity * 10);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "cache-rebuild-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 記錄一次訪問, 用於重建的優先級
+     */
+    public void recordAccess(String key) {
+        accessCounts.computeIfAbsent(key, k -> new LongAdder()).increment();
+        if (accessCounts.size() > maxTrackedKeys) {
+            decay();
+        }
+    }
+
+    /**
+     * 所有key的訪問次數減半, 去掉已經不再訪問的key
+     */
+    private void decay() {
+        if (!decayLock.tryLock()) {
+            return;
+        }
+        try {
+            accessCounts.entrySet().removeIf(e -> {
+                long half = e.getValue().sumThenReset() / 2;
+                e.getValue().add(half);
+                return half == 0;
+            });
+        } finally {
+            decayLock.unlock();
+        }
+    }
+
+    public boolean isPending(String key) {
+        return pendingKeys.containsKey(key);
+    }
+
+    /**
+     * 提交重建任務
+     * @return false表示被拒絕(已經在排隊或者隊列已滿), 調用方需要自己釋放鎖並返回舊值
+     */
+    public boolean submit(String key, Runnable rebuild) {
+        // 1.去重
+        if (pendingKeys.putIfAbsent(key, Boolean.TRUE) != null) {
+            deduplicatedCount.increment();
+            return false;
+        }
+        // 2.隊列已滿, 拒絕
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            pendingKeys.remove(key);
+            rejectedCount.increment();
+            return false;
+        }
+        LongAdder count = accessCounts.get(key);
+        try {
+            executor.execute(new Task(key, count == null ? 0 : count.sum(), rebuild));
+        } catch (RejectedExecutionException e) {
+            // 已經關閉
+            queued.decrementAndGet();
+            pendingKeys.remove(key);
+            rejectedCount.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private void run(Task task) {
+        queued.decrementAndGet();
+        long begin = System.currentTimeMillis();
+        try {
+            task.rebuild.run();
+            completedCount.increment();
+        } catch (Exception e) {
+            failedCount.increment();
+            log.error("緩存重建失敗, key: {}", task.key, e);
+        } finally {
+            long latency = System.currentTimeMillis() - begin;
+            totalLatencyMillis.add(latency);
+            maxLatencyMillis.accumulateAndGet(latency, Math::max);
+            pendingKeys.remove(task.key);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * 排隊中的任務數
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * 正在執行的任務數
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /**
+     * 隊列已滿被拒絕的次數
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * 同一個key已經在排隊而沒有提交的次數
+     */
+    public long getDeduplicatedCount() {
+        return deduplicatedCount.sum();
+    }
+
+    /**
+     * 平均重建耗時, 單位毫秒
+     */
+    public double getAverageLatencyMillis() {
+        long finished = completedCount.sum() + failedCount.sum();
+        return finished == 0 ? 0 : (double) totalLatencyMillis.sum() / finished;
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    /**
+     * 訪問次數多的先執行, 相同時先提交的先執行
+     */
+    private class Task implements Runnable, Comparable<Task> {
+        private final String key;
+        private final long priority;
+        private final long seq = sequence.incrementAndGet();
+        private final Runnable rebuild;
+
+        Task(String key, long priority, Runnable rebuild) {
+            this.key = key;
+            this.priority = priority;
+            this.rebuild = rebuild;
+        }
+
+        @Override
+        public void run() {
+            CacheRebuildScheduler.this.run(this);
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            int c = Long.compare(o.priority, priority);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.hmdp.utils;
+
+import lombok.Getter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 進程內的地理位置索引, 按經緯度把座標劃分到固定大小的網格中
+ * <p>
+ * 查詢最近的點時從所在網格開始一圈一圈向外擴展, 已經找到的點比外圈可能的最近距離還近時停止;
+ * 分頁使用上一頁最後一個點的 (距離, id) 作為游標, 不需要跳過前面的結果
+ * </p>
+ */
+public class GeoGridIndex {
+
+    /**
+     * 與 Redis GEO 相同的地球半徑, 計算出的距離和 GEOSEARCH 一致
+     */
+    private static final double EARTH_RADIUS_METERS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS_METERS;
+    private static final long CELL_KEY_FACTOR = 1_000_000L;
+
+    private final double cellDegrees;
+    private final int maxRing;
+
+    private final Map<Long, double[]> points = new ConcurrentHashMap<>();
+    private final Map<Long, Set<Long>> cells = new ConcurrentHashMap<>();
+
+    /**
+     * @param cellDegrees 網格的邊長, 單位度
+     */
+    public GeoGridIndex(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+        this.maxRing = (int) Math.ceil(360 / cellDegrees);
+    }
+
+    /**
+     * 新增或移動一個點
+     * @param x 經度
+     * @param y 緯度
+     */
+    public synchronized void put(long id, double x, double y) {
+        double[] old = points.put(id, new double[]{x, y});
+        if (old != null) {
+            removeFromCell(id, old[0], old[1]);
+        }
+        cells.computeIfAbsent(cellKey(cellX(x), cellY(y)), k -> ConcurrentHashMap.newKeySet()).add(id);
+    }
+
+    public synchronized boolean remove(long id) {
+        double[] old = points.remove(id);
+        if (old == null) {
+            return false;
+        }
+        removeFromCell(id, old[0], old[1]);
+        return true;
+    }
+
+    public boolean contains(long id) {
+        return points.containsKey(id);
+    }
+
+    public int size() {
+        return points.size();
+    }
+
+    private void removeFromCell(long id, double x, double y) {
+        long key = cellKey(cellX(x), cellY(y));
+        Set<Long> cell = cells.get(key);
+        if (cell != null) {
+            cell.remove(id);
+            if (cell.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+    }
+
+    /**
+     * 按距離由近到遠查詢
+     * @param x 經度
+     * @param y 緯度
+     * @param maxMeters 最大距離
+     * @param after 上一頁的最後一個點, 第一頁傳null
+     * @param limit 最多返回的數量
+     */
+    public List<Neighbor> nearest(double x, double y, double maxMeters, Neighbor after, int limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        // 大根堆, 保存目前找到的最近的 limit 個點
+        PriorityQueue<Neighbor> heap = new PriorityQueue<>(limit + 1, Comparator.reverseOrder());
+        int cx = cellX(x);
+        int cy = cellY(y);
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // 1.掃描這一圈的網格
+            for (int i = cx - ring; i <= cx + ring; i++) {
+                boolean edgeColumn = i == cx - ring || i == cx + ring;
+                for (int j = cy - ring; j <= cy + ring; j++) {
+                    if (edgeColumn || j == cy - ring || j == cy + ring) {
+                        collect(cells.get(cellKey(i, j)), x, y, maxMeters, after, limit, heap);
+                    }
+                }
+            }
+            // 2.外圈的點不會比這個距離更近
+            double bound = outerBound(x, y, cx, cy, ring);
+            if (bound > maxMeters || (heap.size() == limit && heap.peek().distance <= bound)) {
+                break;
+            }
+        }
+        List<Neighbor> result = new ArrayList<>(heap);
+        Collections.sort(result);
+        return result;
+    }
+
+    private void collect(Set<Long> cell, double x, double y, double maxMeters,
+                         Neighbor after, int limit, PriorityQueue<Neighbor> heap) {
+        if (cell == null) {
+            return;
+        }
+        for (Long id : cell) {
+            double[] point = points.get(id);
+            if (point == null) {
+                continue;
+            }
+            Neighbor neighbor = new Neighbor(id, distance(x, y, point[0], point[1]));
+            if (neighbor.distance > maxMeters || (after != null && neighbor.compareTo(after) <= 0)) {
+                continue;
+            }
+            if (heap.size() < limit) {
+                heap.add(neighbor);
+            } else if (neighbor.compareTo(heap.peek()) < 0) {
+                heap.poll();
+                heap.add(neighbor);
+            }
+        }
+    }
+
+    private double outerBound(double x, double y, int cx, int cy, int ring) {
+        // 已掃描區域的邊界
+        double minLon = (cx - ring) * cellDegrees - 180;
+        double maxLon = (cx + ring + 1) * cellDegrees - 180;
+        double minLat = (cy - ring) * cellDegrees - 90;
+        double maxLat = (cy + ring + 1) * cellDegrees - 90;
+        double latMeters = Math.min(y - minLat, maxLat - y) * METERS_PER_DEGREE;
+        // 經度方向的距離按區域內最高緯度計算, 保證是下界
+        double maxAbsLat = Math.min(90, Math.max(Math.abs(minLat), Math.abs(maxLat)));
+        double lonMeters = Math.min(x - minLon, maxLon - x) * METERS_PER_DEGREE * Math.cos(Math.toRadians(maxAbsLat));
+        return Math.max(0, Math.min(latMeters, lonMeters));
+    }
+
+    private int cellX(double x) {
+        return (int) Math.floor((x + 180) / cellDegrees);
+    }
+
+    private int cellY(double y) {
+        return (int) Math.floor((y + 90) / cellDegrees);
+    }
+
+    private static long cellKey(int cellX, int cellY) {
+        return cellX * CELL_KEY_FACTOR + cellY;
+    }
+
+    /**
+     * 兩個座標之間的球面距離, 單位米
+     */
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    /**
+     * 查詢結果, 按 (距離, id) 排序
+     */
+    @Getter
+    public static class Neighbor implements Comparable<Neighbor> {
+        private final long id;
+        private final double distance;
+
+        public Neighbor(long id, double distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Neighbor o) {
+            int c = Double.compare(distance, o.distance);
+            return c != 0 ? c : Long.compare(id, o.id);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.CacheObj;
+import cn.hutool.cache.impl.LRUCache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * 進程內的一級緩存, 容量滿了淘汰最久未訪問的key, 並且每個key有存活時間
+ */
+public class LocalCache {
+
+    /**
+     * 空值佔位, 對應Redis中的空字串
+     */
+    public static final Object NULL_VALUE = new Object();
+
+    private final LRUCache<String, Object> cache;
+    // 每個key的命中/未命中次數, 與緩存同樣有容量上限
+    private final LRUCache<String, KeyStats> stats;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    public LocalCache(int maxSize, long ttlMillis) {
+        this.cache = CacheUtil.newLRUCache(maxSize, ttlMillis);
+        this.stats = CacheUtil.newLRUCache(maxSize);
+    }
+
+    /**
+     * 查詢本地緩存
+     * @return 緩存的值, 空值返回 {@link #NULL_VALUE}, 未命中返回null
+     */
+    public Object get(String key) {
+        Object value = cache.get(key);
+        KeyStats keyStats = stats.get(key, KeyStats::new);
+        if (value == null) {
+            missCount.increment();
+            keyStats.miss.increment();
+        } else {
+            hitCount.increment();
+            keyStats.hit.increment();
+        }
+        return value;
+    }
+
+    public void put(String key, Object value) {
+        cache.put(key, value == null ? NULL_VALUE : value);
+    }
+
+    public void invalidate(String key) {
+        cache.remove(key);
+    }
+
+    /**
+     * 失效所有值滿足條件的key, 需要遍歷整個緩存, 只用於不知道key的低頻場景
+     */
+    public void invalidateIf(Predicate<Object> valueFilter) {
+        List<String> keys = new ArrayList<>();
+        Iterator<CacheObj<String, Object>> iterator = cache.cacheObjIterator();
+        while (iterator.hasNext()) {
+            CacheObj<String, Object> cacheObj = iterator.next();
+            if (valueFilter.test(cacheObj.getValue())) {
+                keys.add(cacheObj.getKey());
+            }
+        }
+        keys.forEach(cache::remove);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getHitCount(String key) {
+        KeyStats keyStats = stats.get(key, false);
+        return keyStats == null ? 0 : keyStats.hit.sum();
+    }
+
+    public long getMissCount(String key) {
+        KeyStats keyStats = stats.get(key, false);
+        return keyStats == null ? 0 : keyStats.miss.sum();
+    }
+
+    private static class KeyStats {
+        private final LongAdder hit = new LongAdder();
+        private final LongAdder miss = new LongAdder();
+    }
+}
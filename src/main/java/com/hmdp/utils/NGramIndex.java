@@ -0,0 +1,213 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.Getter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 進程內的倒排索引, 按字和相鄰兩個字切分, 適合沒有空格分詞的中文
+ * <p>
+ * 查詢時取關鍵字的所有二元組求交集得到候選, 再用原文確認包含關鍵字, 最後按匹配位置打分排序:
+ * 名稱完全相同 > 名稱以關鍵字開頭 > 名稱包含 > 只有地址包含
+ * </p>
+ */
+public class NGramIndex {
+
+    private final Map<String, Set<Long>> postings = new ConcurrentHashMap<>();
+    private final Map<Long, Doc> docs = new ConcurrentHashMap<>();
+
+    /**
+     * 新增或修改一條記錄
+     */
+    public synchronized void put(long id, String name, String address) {
+        remove(id);
+        Doc doc = new Doc(name, normalize(name), normalize(address));
+        docs.put(id, doc);
+        for (String gram : grams(doc)) {
+            postings.computeIfAbsent(gram, k -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    public synchronized boolean remove(long id) {
+        Doc doc = docs.remove(id);
+        if (doc == null) {
+            return false;
+        }
+        for (String gram : grams(doc)) {
+            Set<Long> ids = postings.get(gram);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return docs.size();
+    }
+
+    /**
+     * 按相關度分頁查詢
+     * @param keyword 關鍵字
+     * @param offset 跳過的條數
+     * @param limit 最多返回的條數
+     */
+    public List<Hit> search(String keyword, int offset, int limit) {
+        if (offset < 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<Hit> hits = match(normalize(keyword), false);
+        if (offset >= hits.size()) {
+            return Collections.emptyList();
+        }
+        return hits.subList(offset, Math.min(hits.size(), offset + limit));
+    }
+
+    /**
+     * 自動補全: 名稱以前綴開頭的記錄, 名稱越短越靠前
+     */
+    public List<String> suggest(String prefix, int limit) {
+        List<Hit> hits = match(normalize(prefix), true);
+        List<String> names = new ArrayList<>(Math.min(limit, hits.size()));
+        for (Hit hit : hits) {
+            if (names.size() == limit) {
+                break;
+            }
+            Doc doc = docs.get(hit.id);
+            if (doc != null && !names.contains(doc.name)) {
+                names.add(doc.name);
+            }
+        }
+        return names;
+    }
+
+    private List<Hit> match(String keyword, boolean prefixOnly) {
+        if (keyword.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 1.候選: 所有二元組的倒排列表求交集, 從最短的列表開始
+        List<Set<Long>> lists = new ArrayList<>();
+        for (String gram : queryGrams(keyword)) {
+            Set<Long> ids = postings.get(gram);
+            if (ids == null) {
+                return Collections.emptyList();
+            }
+            lists.add(ids);
+        }
+        lists.sort(Comparator.comparingInt(Set::size));
+        // 2.用原文確認並打分
+        List<Hit> hits = new ArrayList<>();
+        for (Long id : lists.get(0)) {
+            if (!containsAll(lists, id)) {
+                continue;
+            }
+            Doc doc = docs.get(id);
+            if (doc == null) {
+                continue;
+            }
+            int score = score(doc, keyword);
+            if (score > 0 && (!prefixOnly || doc.normName.startsWith(keyword))) {
+                hits.add(new Hit(id, score));
+            }
+        }
+        hits.sort(null);
+        return hits;
+    }
+
+    private static boolean containsAll(List<Set<Long>> lists, Long id) {
+        for (int i = 1; i < lists.size(); i++) {
+            if (!lists.get(i).contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int score(Doc doc, String keyword) {
+        int nameIndex = doc.normName.indexOf(keyword);
+        if (nameIndex < 0) {
+            return doc.normAddress.contains(keyword) ? 1 : 0;
+        }
+        int score;
+        if (doc.normName.length() == keyword.length()) {
+            score = 1000;
+        } else if (nameIndex == 0) {
+            score = 500;
+        } else {
+            score = 100;
+        }
+        // 匹配的部分佔名稱的比例越高越相關
+        return score + keyword.length() * 100 / doc.normName.length();
+    }
+
+    private static Set<String> grams(Doc doc) {
+        Set<String> grams = new HashSet<>();
+        addGrams(doc.normName, grams);
+        addGrams(doc.normAddress, grams);
+        return grams;
+    }
+
+    private static void addGrams(String text, Set<String> grams) {
+        for (int i = 0; i < text.length(); i++) {
+            grams.add(text.substring(i, i + 1));
+            if (i + 1 < text.length()) {
+                grams.add(text.substring(i, i + 2));
+            }
+        }
+    }
+
+    private static Set<String> queryGrams(String keyword) {
+        if (keyword.length() == 1) {
+            return Collections.singleton(keyword);
+        }
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + 1 < keyword.length(); i++) {
+            grams.add(keyword.substring(i, i + 2));
+        }
+        return grams;
+    }
+
+    /**
+     * 去掉空白並轉小寫
+     */
+    static String normalize(String text) {
+        return text == null ? "" : StrUtil.cleanBlank(text).toLowerCase();
+    }
+
+    private static class Doc {
+        private final String name;
+        private final String normName;
+        private final String normAddress;
+
+        Doc(String name, String normName, String normAddress) {
+            this.name = name;
+            this.normName = normName;
+            this.normAddress = normAddress;
+        }
+    }
+
+    /**
+     * 查詢結果, 分數高的在前, 分數相同按id
+     */
+    @Getter
+    public static class Hit implements Comparable<Hit> {
+        private final long id;
+        private final int score;
+
+        public Hit(long id, int score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Hit o) {
+            int c = Integer.compare(o.score, score);
+            return c != 0 ? c : Long.compare(id, o.id);
+        }
+    }
+}
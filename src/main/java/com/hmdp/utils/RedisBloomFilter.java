@@ -0,0 +1,194 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands.BitOperation;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+
+/**
+ * Redis bitmap 保存、本地鏡像查詢的布隆過濾器
+ * <p>
+ * bloom:{name} 是一個hash, 記錄當前使用的bitmap key、位數和哈希次數; 重建時寫入新的bitmap再切換, 切換前舊的照常使用。
+ * 查詢只訪問本地鏡像, 新增時同時寫入本地、Redis中的當前bitmap和正在重建的bitmap, 並通知其他節點
+ * </p>
+ */
+@Slf4j
+public class RedisBloomFilter {
+
+    private static final String FIELD_KEY = "key";
+    private static final String FIELD_BITS = "bits";
+    private static final String FIELD_HASHES = "hashes";
+    private static final String FIELD_NEXT = "next";
+    private static final String FIELD_NEXT_BITS = "nextBits";
+    private static final String FIELD_NEXT_HASHES = "nextHashes";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String name;
+    private final String metaKey;
+    private final double fpp;
+
+    // 載入完成前為null, 此時所有id都當作可能存在
+    private volatile BloomFilter local;
+    // 正在重建的過濾器, 重建期間新增的id同時寫入
+    private volatile BloomFilter building;
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String name, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.name = name;
+        this.metaKey = BLOOM_KEY + name;
+        this.fpp = fpp;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isReady() {
+        return local != null;
+    }
+
+    /**
+     * @return false表示一定不存在
+     */
+    public boolean mightContain(Object id) {
+        BloomFilter filter = local;
+        return filter == null || filter.mightContain(id.toString());
+    }
+
+    /**
+     * 新增記錄後調用
+     */
+    public void add(Object id) {
+        String value = id.toString();
+        addLocal(value);
+        // 1.寫入Redis中的當前bitmap和正在重建的bitmap, 兩者的位數可能不同
+        List<Object> meta = stringRedisTemplate.opsForHash().multiGet(metaKey, Arrays.asList(
+                FIELD_KEY, FIELD_BITS, FIELD_HASHES, FIELD_NEXT, FIELD_NEXT_BITS, FIELD_NEXT_HASHES));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < meta.size(); i += 3) {
+                if (meta.get(i) == null) {
+                    continue;
+                }
+                BloomFilter shape = new BloomFilter(Long.parseLong((String) meta.get(i + 1)),
+                        Integer.parseInt((String) meta.get(i + 2)), new byte[0]);
+                byte[] key = bytes((String) meta.get(i));
+                for (long offset : shape.offsets(value)) {
+                    connection.stringCommands().setBit(key, offset, true);
+                }
+            }
+            return null;
+        });
+        // 2.通知其他節點
+        stringRedisTemplate.convertAndSend(BLOOM_CHANNEL, name + ":add:" + value);
+    }
+
+    private void addLocal(String value) {
+        BloomFilter filter = local;
+        if (filter != null) {
+            filter.put(value);
+        }
+        BloomFilter next = building;
+        if (next != null) {
+            next.put(value);
+        }
+    }
+
+    /**
+     * 處理其他節點的通知
+     */
+    public void onMessage(String action, String value) {
+        if ("add".equals(action)) {
+            addLocal(value);
+        } else if ("switch".equals(action)) {
+            load();
+        }
+    }
+
+    /**
+     * 從Redis載入當前bitmap到本地
+     * @return Redis中沒有時返回false, 需要重建
+     */
+    public boolean load() {
+        Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(metaKey);
+        if (meta.get(FIELD_KEY) == null) {
+            return false;
+        }
+        byte[] key = bytes((String) meta.get(FIELD_KEY));
+        byte[] bits = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(key));
+        if (bits == null) {
+            return false;
+        }
+        local = new BloomFilter(Long.parseLong((String) meta.get(FIELD_BITS)),
+                Integer.parseInt((String) meta.get(FIELD_HASHES)), bits);
+        log.info("布隆過濾器 {} 載入完成, 位數: {}", name, local.getNumBits());
+        return true;
+    }
+
+    /**
+     * 重建: 寫入新的bitmap後切換, 調用方需要持有重建鎖
+     * @param expectedInsertions 預計的記錄數
+     * @param source 遍歷所有id
+     */
+    public void rebuild(long expectedInsertions, Consumer<Consumer<Object>> source) {
+        BloomFilter next = BloomFilter.create(expectedInsertions, fpp);
+        // 新的bitmap和臨時key使用相同的hash tag, BITOP 要求在同一個slot
+        String nextKey = metaKey + ":{" + System.currentTimeMillis() + "}";
+        // 1.記錄正在重建的key, 之後新增的id同時寫入新的bitmap
+        building = next;
+        Map<String, String> nextMeta = new HashMap<>(4);
+        nextMeta.put(FIELD_NEXT, nextKey);
+        nextMeta.put(FIELD_NEXT_BITS, String.valueOf(next.getNumBits()));
+        nextMeta.put(FIELD_NEXT_HASHES, String.valueOf(next.getNumHashes()));
+        stringRedisTemplate.opsForHash().putAll(metaKey, nextMeta);
+        try {
+            // 2.遍歷所有id
+            source.accept(id -> next.put(id.toString()));
+            // 3.和重建期間寫入的位合併, 再寫回新的key
+            byte[] rawNext = bytes(nextKey);
+            byte[] rawTemp = bytes(nextKey + ":tmp");
+            byte[] bits = next.toByteArray();
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.stringCommands().set(rawTemp, bits);
+                connection.stringCommands().bitOp(BitOperation.OR, rawNext, rawNext, rawTemp);
+                connection.keyCommands().del(rawTemp);
+                return null;
+            });
+            // 4.切換到新的bitmap, 刪除舊的
+            Object oldKey = stringRedisTemplate.opsForHash().get(metaKey, FIELD_KEY);
+            Map<String, String> meta = new HashMap<>(4);
+            meta.put(FIELD_KEY, nextKey);
+            meta.put(FIELD_BITS, String.valueOf(next.getNumBits()));
+            meta.put(FIELD_HASHES, String.valueOf(next.getNumHashes()));
+            stringRedisTemplate.opsForHash().putAll(metaKey, meta);
+            stringRedisTemplate.opsForHash().delete(metaKey, FIELD_NEXT, FIELD_NEXT_BITS, FIELD_NEXT_HASHES);
+            if (oldKey != null) {
+                stringRedisTemplate.delete((String) oldKey);
+            }
+            local = next;
+            // 5.通知其他節點重新載入
+            stringRedisTemplate.convertAndSend(BLOOM_CHANNEL, name + ":switch:");
+            log.info("布隆過濾器 {} 重建完成, 預計數量: {}, 位數: {}, 哈希次數: {}",
+                    name, expectedInsertions, next.getNumBits(), next.getNumHashes());
+        } catch (RuntimeException e) {
+            stringRedisTemplate.opsForHash().delete(metaKey, FIELD_NEXT, FIELD_NEXT_BITS, FIELD_NEXT_HASHES);
+            stringRedisTemplate.delete(nextKey);
+            throw e;
+        } finally {
+            building = null;
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
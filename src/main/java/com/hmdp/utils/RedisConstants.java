@@ -5,18 +5,66 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
+    public static final String LOGIN_INVALIDATE_CHANNEL = "login:invalidate";
 
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Integer CACHE_SHOP_LOCAL_SIZE = 10000;
+    public static final Long CACHE_SHOP_LOCAL_TTL = 60L;
+
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shop-type:version";
+
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_CHANNEL = "bloom:changed";
+    public static final String LOCK_BLOOM_REBUILD_KEY = "lock:bloom:rebuild:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    // 緩存key的版本: {緩存key}:version, 有效期需要大於一次資料庫查詢的耗時
+    public static final String CACHE_VERSION_SUFFIX = ":version";
+    public static final Long CACHE_VERSION_TTL = 60L;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final String CACHE_VOUCHER_SHOP_KEY = "cache:voucher:shop:";
+    public static final Long CACHE_VOUCHER_SHOP_TTL = 30L;
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:stock:shards";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_TRANSFER_KEY = "seckill:transfer:";
+    public static final String SECKILL_TRANSFER_APPLIED_KEY = "seckill:transfer-applied:";
+    public static final String LOCK_SECKILL_PRELOAD_KEY = "lock:seckill:preload:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_PROCESSED_KEY = "stream.orders:processed";
+    public static final String SECKILL_ORDER_DEAD_STREAM = "stream.orders.dead";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKE_COUNT_KEY = "blog:like:count";
+    public static final String BLOG_LIKE_DIRTY_KEY = "blog:like:dirty";
+    public static final String BLOG_LIKE_FLUSHING_KEY = "blog:like:dirty:flushing";
+    public static final String LOCK_BLOG_LIKE_FLUSH_KEY = "lock:blog:like:flush";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String LOCK_BLOG_HOT_REBUILD_KEY = "lock:blog:hot:rebuild";
+    // 熱度的時間衰減: 晚發佈這麼多秒, 相當於多一個讚
+    public static final Long BLOG_HOT_DECAY_SECONDS = 43200L;
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_ACTIVE_KEY = "feed:active";
+    public static final String FEED_BIG_V_KEY = "feed:bigv";
+    public static final String FEED_STREAM = "stream.feed";
+    public static final String FOLLOWS_KEY = "follows:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_CHANNEL = "shop:geo:changed";
+    public static final Double SHOP_GEO_MAX_METERS = 5000D;
+    public static final String LOCK_SHOP_GEO_RECONCILE_KEY = "lock:shop:geo:reconcile";
+    public static final String SHOP_NAME_CHANNEL = "shop:name:changed";
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -8,4 +8,6 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    // 上次重建的耗時, 單位毫秒
+    private long rebuildMillis;
 }
@@ -1,12 +1,22 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     /**
@@ -18,11 +28,34 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    /**
+     * 號段用掉80%時, 異步預取下一個號段
+     */
+    private static final double PREFETCH_RATIO = 0.8;
+
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor();
+
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 號段大小, 每次 INCRBY 預留的序列號數量; 小於等於1時每個ID都 INCR 一次
+     */
+    private final long segmentStep;
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this(stringRedisTemplate, 0);
+    }
+
+    @Autowired
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id-worker.segment-step:0}") long segmentStep) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentStep = segmentStep;
     }
+
     // keyPrefix 不同業務的前綴
     public long nextId(String keyPrefix) {
         // 1.生成时间戳
@@ -31,13 +64,109 @@ public class RedisIdWorker {
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
         // 2.生成序列号
-        // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2.自增长 加入date也可以做判斷是否當天的資料
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count;
+        if (segmentStep > 1) {
+            // 2.1.號段模式, 從本地號段取
+            count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(now);
+        } else {
+            // 2.2.获取当前日期，精确到天
+            String date = now.format(DATE_FORMATTER);
+            // 2.3.自增长 加入date也可以做判斷是否當天的資料
+            count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        }
 
         // 3.拼接并返回 時間戳向左移動32位
         return timestamp << COUNT_BITS | count;
     }
-}
 
+    /**
+     * 一段已經在Redis中預留的序列號 [min, max]
+     */
+    private static class Segment {
+        private final long epochDay;
+        private final long min;
+        private final long max;
+        private final AtomicLong next;
+
+        Segment(long epochDay, long min, long max) {
+            this.epochDay = epochDay;
+            this.min = min;
+            this.max = max;
+            this.next = new AtomicLong(min);
+        }
+    }
+
+    /**
+     * 某個業務前綴的號段, 當前號段用完前會預取下一個
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private CompletableFuture<Segment> prefetch;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(LocalDateTime now) {
+            long epochDay = now.toLocalDate().toEpochDay();
+            while (true) {
+                Segment segment = current;
+                if (segment == null || segment.epochDay != epochDay) {
+                    // 第一次使用或者跨天, 換成當天的號段
+                    switchSegment(segment, now);
+                    continue;
+                }
+                long seq = segment.next.getAndIncrement();
+                if (seq <= segment.max) {
+                    if (seq - segment.min >= (long) (segmentStep * PREFETCH_RATIO)) {
+                        prefetch(segment, now);
+                    }
+                    return seq;
+                }
+                // 號段用完
+                switchSegment(segment, now);
+            }
+        }
+
+        private synchronized void prefetch(Segment segment, LocalDateTime now) {
+            if (prefetch != null || current != segment) {
+                return;
+            }
+            prefetch = CompletableFuture.supplyAsync(() -> load(now), SEGMENT_PREFETCH_EXECUTOR);
+        }
+
+        private synchronized void switchSegment(Segment exhausted, LocalDateTime now) {
+            if (current != exhausted) {
+                // 其他線程已經換過了
+                return;
+            }
+            long epochDay = now.toLocalDate().toEpochDay();
+            // 優先使用預取的號段, 它比現在再去預留的號段小, 保證單調遞增
+            if (prefetch != null) {
+                try {
+                    Segment next = prefetch.join();
+                    if (next.epochDay == epochDay) {
+                        current = next;
+                        return;
+                    }
+                } catch (Exception e) {
+                    log.error("預取號段失敗, keyPrefix: {}", keyPrefix, e);
+                } finally {
+                    prefetch = null;
+                }
+            }
+            current = load(now);
+        }
+
+        private Segment load(LocalDateTime now) {
+            String date = now.format(DATE_FORMATTER);
+            // INCRBY 一次預留 segmentStep 個序列號, 返回的是號段的最大值
+            Long max = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentStep);
+            if (max == null) {
+                throw new IllegalStateException("預留號段失敗, keyPrefix: " + keyPrefix);
+            }
+            return new Segment(now.toLocalDate().toEpochDay(), max - segmentStep + 1, max);
+        }
+    }
+}
@@ -1,23 +1,19 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 public class RefreshTokenInterceptor implements HandlerInterceptor {
 
-    private StringRedisTemplate stringRedisTemplate;
+    private TokenSessionCache tokenSessionCache;
 
     //因為這物件是由我們自己new出來, 所以不能用自動注入
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    public RefreshTokenInterceptor(TokenSessionCache tokenSessionCache) {
+        this.tokenSessionCache = tokenSessionCache;
     }
 
     @Override //進入controller前校驗用戶
@@ -27,21 +23,16 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         if(StrUtil.isBlank(token)){
             return true;
         }
-        // 2.基於token獲取redis中的用戶
-        String key = RedisConstants.LOGIN_USER_KEY + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(key);
+        // 2.基於token獲取用戶, 先查本地緩存再查redis, 並在後台刷新token有效期
+        UserDTO userDTO = tokenSessionCache.get(token);
 
         // 3.判斷用戶是否存在
-        if(userMap.isEmpty()){
+        if(userDTO == null){
             return true;
         }
-        // 5.將查詢到的Hash數據轉為UserDTO對象
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
-        // 6.存在, 保存用戶信息到ThreadLocal
+        // 4.存在, 保存用戶信息到ThreadLocal
         UserHolder.saveUser(userDTO);
-        // 7.刷新token有效期
-        stringRedisTemplate.expire(key, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
-        // 8.執行
+        // 5.執行
         return HandlerInterceptor.super.preHandle(request, response, handler);
     }
 
@@ -0,0 +1,163 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒殺請求在執行 seckill.lua 之前的准入控制
+ * <p>
+ * 1.售罄標記: 腳本返回庫存不足後本地記錄, 並通過 pub/sub 通知所有節點, 之後的請求不再訪問Redis;
+ * 2.令牌桶: 每個代金卷按剩餘庫存確定容量, 每秒補滿一次, 超出的請求直接拒絕。
+ * 剩餘庫存在後台定時用一次 pipeline 刷新
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    // 一段時間沒有請求的代金卷不再刷新庫存
+    private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillStockShards seckillStockShards;
+
+    // 令牌桶容量 = 剩餘庫存 * factor, 至少 minCapacity
+    private final double factor;
+    private final int minCapacity;
+
+    private final Map<Long, Gate> gates = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public SeckillAdmission(StringRedisTemplate stringRedisTemplate,
+                            SeckillStockShards seckillStockShards,
+                            RedisMessageListenerContainer listenerContainer,
+                            @Value("${hmdp.seckill.admission-factor:2}") double factor,
+                            @Value("${hmdp.seckill.admission-min-capacity:100}") int minCapacity,
+                            @Value("${hmdp.seckill.stock-refresh-interval:500}") long refreshIntervalMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillStockShards = seckillStockShards;
+        this.factor = factor;
+        this.minCapacity = minCapacity;
+        // 訂閱售罄通知
+        listenerContainer.addMessageListener(
+                (message, pattern) -> markSoldOutLocal(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        refreshExecutor.scheduleWithFixedDelay(this::refresh, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdown();
+    }
+
+    /**
+     * 判斷請求能否進入 seckill.lua
+     * @return 0: 可以; 1: 已售罄; 3: 請求過多
+     */
+    public int tryAdmit(Long voucherId) {
+        Gate gate = gates.computeIfAbsent(voucherId, this::newGate);
+        gate.lastAccess = System.currentTimeMillis();
+        if (gate.soldOut) {
+            return 1;
+        }
+        return gate.tryAcquire() ? 0 : 3;
+    }
+
+    /**
+     * 腳本返回庫存不足時調用, 通知所有節點
+     */
+    public void markSoldOut(Long voucherId) {
+        markSoldOutLocal(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+    }
+
+    private void markSoldOutLocal(Long voucherId) {
+        Gate gate = gates.get(voucherId);
+        if (gate != null) {
+            gate.soldOut = true;
+        }
+    }
+
+    private Gate newGate(Long voucherId) {
+        Gate gate = new Gate();
+        gate.update(seckillStockShards.remaining(Collections.singletonList(voucherId)).get(0));
+        // 新的令牌桶是滿的
+        gate.tokens = gate.capacity;
+        return gate;
+    }
+
+    private void refresh() {
+        try {
+            // 1.去掉長時間沒有請求的代金卷
+            long now = System.currentTimeMillis();
+            gates.entrySet().removeIf(e -> now - e.getValue().lastAccess > IDLE_MILLIS);
+            if (gates.isEmpty()) {
+                return;
+            }
+            // 2.一次 pipeline 讀取所有代金卷的剩餘庫存, 分片的代金卷為所有分片之和
+            List<Long> voucherIds = new ArrayList<>(gates.keySet());
+            List<Long> stocks = seckillStockShards.remaining(voucherIds);
+            // 3.更新容量, 補貨後清除售罄標記
+            for (int i = 0; i < voucherIds.size(); i++) {
+                Gate gate = gates.get(voucherIds.get(i));
+                if (gate != null) {
+                    gate.update(stocks.get(i));
+                }
+            }
+        } catch (Exception e) {
+            log.error("刷新秒殺庫存異常", e);
+        }
+    }
+
+    private class Gate {
+        private volatile boolean soldOut;
+        private volatile long lastAccess = System.currentTimeMillis();
+        private double capacity;
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+
+        /**
+         * @param stock 剩餘庫存, null表示庫存還沒有預熱或者已經清除, 不標記售罄, 由腳本判斷
+         */
+        synchronized void update(Long stock) {
+            if (stock == null) {
+                soldOut = false;
+                capacity = minCapacity;
+            } else {
+                soldOut = stock <= 0;
+                capacity = Math.max(minCapacity, stock * factor);
+            }
+            tokens = Math.min(tokens, capacity);
+        }
+
+        synchronized boolean tryAcquire() {
+            // 按經過的時間補充令牌, 每秒補滿一次
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + capacity * (now - lastRefillNanos) / 1e9);
+            lastRefillNanos = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 超熱門秒殺券的分片庫存
+ * <p>
+ * 庫存拆分到K個子key, 每個子key和對應的訂單集合使用相同的hash tag, 在Redis Cluster中分佈到不同的slot;
+ * 用戶按id固定路由到一個分片, 所以分片內的訂單集合就能保證一人一單;
+ * 每個分片有自己的訂單隊列, 扣庫存和發送訂單消息在同一個腳本中完成;
+ * 分片庫存用完時從其他分片調撥一半過來, 調撥只會少賣不會超賣;
+ * 調出時在調出分片記錄調撥, 調入是冪等的, 中斷的調撥由定時任務補完, 庫存不會丟失
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillStockShards {
+
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> STEAL_SCRIPT;
+    private static final DefaultRedisScript<Long> TRANSFER_SCRIPT;
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+        STEAL_SCRIPT = new DefaultRedisScript<>();
+        STEAL_SCRIPT.setLocation(new ClassPathResource("seckill_steal.lua"));
+        STEAL_SCRIPT.setResultType(Long.class);
+        TRANSFER_SCRIPT = new DefaultRedisScript<>();
+        TRANSFER_SCRIPT.setLocation(new ClassPathResource("seckill_transfer.lua"));
+        TRANSFER_SCRIPT.setResultType(Long.class);
+    }
+
+    // 調撥記錄超過這個時間還沒有刪除, 認為調入中斷
+    private static final long TRANSFER_TIMEOUT_MILLIS = 5000L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // 分片數, 小於等於1時不分片
+    private final int shards;
+    // 庫存達到這個數量才分片
+    private final long shardMinStock;
+
+    // 代金卷的分片數, 發佈後不會改變, 1表示不分片
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public SeckillStockShards(StringRedisTemplate stringRedisTemplate,
+                              @Value("${hmdp.seckill.stock-shards:1}") int shards,
+                              @Value("${hmdp.seckill.shard-min-stock:1000}") long shardMinStock,
+                              @Value("${hmdp.seckill.transfer-reconcile-interval:10}") long reconcileInterval) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.shards = shards;
+        this.shardMinStock = shardMinStock;
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcileTransfers, reconcileInterval, reconcileInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        reconcileExecutor.shutdown();
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String windowKey(Long voucherId, int shard) {
+        return SECKILL_WINDOW_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String transferKey(Long voucherId, int shard) {
+        return SECKILL_TRANSFER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String transferAppliedKey(Long voucherId, int shard) {
+        return SECKILL_TRANSFER_APPLIED_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderStreamKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_STREAM + ":{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 代金卷的庫存key, 不分片時只有一個
+     */
+    public List<String> stockKeys(Long voucherId) {
+        return keys(voucherId, SECKILL_STOCK_KEY + voucherId, SeckillStockShards::stockKey);
+    }
+
+    public List<String> orderKeys(Long voucherId) {
+        return keys(voucherId, SECKILL_ORDER_KEY + voucherId, SeckillStockShards::orderKey);
+    }
+
+    /**
+     * 秒殺時間key, 分片時每個分片一份, 和分片庫存位於同一個slot
+     */
+    public List<String> windowKeys(Long voucherId) {
+        return keys(voucherId, SECKILL_WINDOW_KEY + voucherId, SeckillStockShards::windowKey);
+    }
+
+    /**
+     * 分片的訂單隊列, 不分片時為空, 訂單在 stream.orders 中
+     */
+    public List<String> orderStreamKeys(Long voucherId) {
+        if (!isSharded(voucherId)) {
+            return Collections.emptyList();
+        }
+        return keys(voucherId, SECKILL_ORDER_STREAM, SeckillStockShards::orderStreamKey);
+    }
+
+    /**
+     * 所有分片秒殺券的訂單隊列, 由訂單消費者輪詢
+     */
+    public List<String> allOrderStreamKeys() {
+        List<String> streams = new ArrayList<>();
+        shardedCounts().forEach((voucherId, count) -> {
+            for (int i = 0; i < count; i++) {
+                streams.add(orderStreamKey(voucherId, i));
+            }
+        });
+        return streams;
+    }
+
+    /**
+     * 分片的調撥記錄和已調入記錄, 秒殺結束後清除
+     */
+    public List<String> transferKeys(Long voucherId) {
+        if (!isSharded(voucherId)) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<>(keys(voucherId, SECKILL_TRANSFER_KEY, SeckillStockShards::transferKey));
+        keys.addAll(keys(voucherId, SECKILL_TRANSFER_APPLIED_KEY, SeckillStockShards::transferAppliedKey));
+        return keys;
+    }
+
+    /**
+     * 所有分片秒殺券的分片數
+     */
+    private Map<Long, Integer> shardedCounts() {
+        Map<Long, Integer> counts = new HashMap<>();
+        stringRedisTemplate.opsForHash().entries(SECKILL_SHARDS_KEY).forEach((voucherId, count) ->
+                counts.put(Long.valueOf((String) voucherId), Integer.valueOf((String) count)));
+        return counts;
+    }
+
+    /**
+     * 分片訂單隊列中的消息是否都已經被消費並確認, 之後才能清除
+     */
+    public boolean ordersDrained(Long voucherId) {
+        for (String stream : orderStreamKeys(voucherId)) {
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stream))) {
+                continue;
+            }
+            StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(stream);
+            boolean drained = stringRedisTemplate.opsForStream().groups(stream).stream()
+                    .anyMatch(group -> SECKILL_ORDER_GROUP.equals(group.groupName())
+                            && group.pendingCount() == 0
+                            && Objects.equals(group.lastDeliveredId(), info.lastGeneratedId()));
+            if (!drained) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<String> keys(Long voucherId, String plainKey, BiFunction<Long, Integer, String> shardKey) {
+        int count = shardCount(voucherId);
+        if (count <= 1) {
+            return Collections.singletonList(plainKey);
+        }
+        List<String> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(shardKey.apply(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 新增秒殺券時寫入Redis庫存, 庫存足夠多時拆分到多個分片
+     */
+    public void provision(Long voucherId, int stock) {
+        if (shards <= 1 || stock < shardMinStock) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            shardCounts.put(voucherId, 1);
+            return;
+        }
+        // 平均分配, 餘數分給前面的分片
+        Map<String, String> values = new HashMap<>(shards);
+        for (int i = 0; i < shards; i++) {
+            values.put(stockKey(voucherId, i), String.valueOf(stock / shards + (i < stock % shards ? 1 : 0)));
+        }
+        // 每個分片在不同的slot, 逐個寫入, 最後寫分片數讓請求開始使用分片
+        values.forEach((key, value) -> stringRedisTemplate.opsForValue().set(key, value));
+        stringRedisTemplate.opsForHash().put(SECKILL_SHARDS_KEY, voucherId.toString(), String.valueOf(shards));
+        shardCounts.put(voucherId, shards);
+    }
+
+    /**
+     * Redis中還沒有庫存時才寫入, 不覆蓋秒殺中的庫存
+     * @return 是否寫入
+     */
+    public boolean provisionIfAbsent(Long voucherId, int stock) {
+        if (isSharded(voucherId) || Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_KEY + voucherId))) {
+            return false;
+        }
+        provision(voucherId, stock);
+        return true;
+    }
+
+    /**
+     * 秒殺結束後清除分片數
+     */
+    public void forget(Long voucherId) {
+        stringRedisTemplate.opsForHash().delete(SECKILL_SHARDS_KEY, voucherId.toString());
+        shardCounts.remove(voucherId);
+    }
+
+    public boolean isSharded(Long voucherId) {
+        return shardCount(voucherId) > 1;
+    }
+
+    public int shardCount(Long voucherId) {
+        Integer count = shardCounts.get(voucherId);
+        if (count != null) {
+            return count;
+        }
+        Object value = stringRedisTemplate.opsForHash().get(SECKILL_SHARDS_KEY, voucherId.toString());
+        count = value == null ? 1 : Integer.parseInt((String) value);
+        shardCounts.put(voucherId, count);
+        return count;
+    }
+
+    /**
+     * 分片模式的秒殺
+     * @return 0: 成功; 1: 庫存不足; 2: 重複下單; 3: 尚未開始; 4: 已經結束; 5: 秒殺時間未預熱;
+     * 6: 本分片沒有庫存但其他分片或者調撥中還有, 請稍後重試
+     */
+    public int seckill(Long voucherId, Long userId, long orderId) {
+        int count = shardCount(voucherId);
+        int home = (int) Math.floorMod(userId, (long) count);
+        List<String> keys = Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home),
+                windowKey(voucherId, home), orderStreamKey(voucherId, home));
+        // 1.在用戶所在的分片扣庫存並發送訂單消息到分片的隊列
+        String[] args = {userId.toString(), String.valueOf(System.currentTimeMillis()), voucherId.toString(), String.valueOf(orderId)};
+        Long result = stringRedisTemplate.execute(SHARD_SCRIPT, keys, (Object[]) args);
+        // 2.分片庫存不足, 從其他分片調撥後再試一次
+        if (result != null && result == 1 && rebalance(voucherId, home, count)) {
+            result = stringRedisTemplate.execute(SHARD_SCRIPT, keys, (Object[]) args);
+        }
+        if (result == null) {
+            return 6;
+        }
+        // 3.調撥失敗或者調入的庫存被其他用戶搶走, 確認所有分片和調撥中都沒有庫存才算售罄
+        if (result == 1 && !soldOut(voucherId, count)) {
+            return 6;
+        }
+        return result.intValue();
+    }
+
+    /**
+     * 所有分片的庫存加上調撥中的數量是否為0
+     */
+    @SuppressWarnings("unchecked")
+    private boolean soldOut(Long voucherId, int count) {
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < count; i++) {
+                connection.stringCommands().get(stockKey(voucherId, i).getBytes(StandardCharsets.UTF_8));
+                connection.hashCommands().hVals(transferKey(voucherId, i).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        for (int i = 0; i < count; i++) {
+            Object stock = values.get(2 * i);
+            if (stock != null && Long.parseLong((String) stock) > 0) {
+                return false;
+            }
+            // 調撥記錄: 調入的分片:數量:時間
+            List<Object> transfers = (List<Object>) values.get(2 * i + 1);
+            if (transfers != null) {
+                for (Object transfer : transfers) {
+                    if (Long.parseLong(((String) transfer).split(":")[1]) > 0) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean rebalance(Long voucherId, int home, int count) {
+        for (int i = 1; i < count; i++) {
+            int donor = (home + i) % count;
+            // 1.調出, 同時在調出分片記錄調撥
+            String transferId = UUID.randomUUID().toString(true);
+            Long taken = stringRedisTemplate.execute(STEAL_SCRIPT,
+                    Arrays.asList(stockKey(voucherId, donor), transferKey(voucherId, donor)),
+                    transferId, String.valueOf(home), String.valueOf(System.currentTimeMillis()));
+            if (taken != null && taken > 0) {
+                // 2.調入, 失敗時調撥記錄還在, 由定時任務補完
+                try {
+                    completeTransfer(voucherId, donor, transferId, home, taken);
+                } catch (Exception e) {
+                    log.warn("分片庫存調入失敗, 等待補完, voucherId: {}, {} -> {}, 數量: {}", voucherId, donor, home, taken, e);
+                    return false;
+                }
+                log.debug("分片庫存調撥, voucherId: {}, {} -> {}, 數量: {}", voucherId, donor, home, taken);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void completeTransfer(Long voucherId, int donor, String transferId, int home, long amount) {
+        // 調入是冪等的, 重複執行不會重複加庫存
+        stringRedisTemplate.execute(TRANSFER_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), transferAppliedKey(voucherId, home)),
+                transferId, String.valueOf(amount));
+        stringRedisTemplate.opsForHash().delete(transferKey(voucherId, donor), transferId);
+    }
+
+    /**
+     * 補完中斷的調撥: 調出後進程宕機或者調入失敗時, 調出的庫存還記錄在調出分片中
+     */
+    public void reconcileTransfers() {
+        try {
+            long now = System.currentTimeMillis();
+            shardedCounts().forEach((voucherId, count) -> {
+                for (int donor = 0; donor < count; donor++) {
+                    Map<Object, Object> transfers = stringRedisTemplate.opsForHash().entries(transferKey(voucherId, donor));
+                    for (Map.Entry<Object, Object> entry : transfers.entrySet()) {
+                        // 調撥記錄: 調入的分片:數量:時間, 還沒有超時的可能正在調入
+                        String[] parts = ((String) entry.getValue()).split(":");
+                        if (now - Long.parseLong(parts[2]) < TRANSFER_TIMEOUT_MILLIS) {
+                            continue;
+                        }
+                        completeTransfer(voucherId, donor, (String) entry.getKey(), Integer.parseInt(parts[0]), Long.parseLong(parts[1]));
+                        log.info("補完分片庫存調撥, voucherId: {}, {} -> {}, 數量: {}", voucherId, donor, parts[0], parts[1]);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            log.error("補完分片庫存調撥異常", e);
+        }
+    }
+
+    /**
+     * 一次 pipeline 查詢剩餘庫存, 分片模式為所有分片之和
+     * @return 和 voucherIds 順序一致, 沒有庫存key時為null
+     */
+    public List<Long> remaining(List<Long> voucherIds) {
+        List<String> keys = new ArrayList<>();
+        int[] counts = new int[voucherIds.size()];
+        for (int i = 0; i < voucherIds.size(); i++) {
+            Long voucherId = voucherIds.get(i);
+            counts[i] = shardCount(voucherId);
+            if (counts[i] <= 1) {
+                keys.add(SECKILL_STOCK_KEY + voucherId);
+            } else {
+                for (int s = 0; s < counts[i]; s++) {
+                    keys.add(stockKey(voucherId, s));
+                }
+            }
+        }
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        List<Long> stocks = new ArrayList<>(voucherIds.size());
+        int index = 0;
+        for (int count : counts) {
+            Long total = null;
+            for (int s = 0; s < Math.max(1, count); s++) {
+                Object value = values.get(index++);
+                if (value != null) {
+                    total = (total == null ? 0 : total) + Long.parseLong((String) value);
+                }
+            }
+            stocks.add(total);
+        }
+        return stocks;
+    }
+}
@@ -0,0 +1,178 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 登入狀態的本地緩存
+ * <p>
+ * 每個請求都要根據token查詢用戶, 命中本地緩存時不訪問Redis;
+ * 刷新token有效期時, 每個token在一個刷新窗口內最多 EXPIRE 一次, 並且在後台按批 pipeline 執行。
+ * 登出或用戶信息修改時, 通過 pub/sub 通知所有節點清除本地緩存。
+ * </p>
+ */
+@Slf4j
+@Component
+public class TokenSessionCache {
+
+    private static final String TOKEN_MESSAGE_PREFIX = "token:";
+    private static final String USER_MESSAGE_PREFIX = "user:";
+    private static final int EXPIRE_BATCH_SIZE = 500;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final LocalCache sessions;
+
+    // 每個token上一次刷新有效期的時間, 用於合併刷新
+    private final LRUCache<String, Long> lastRefreshTimes;
+    private final long refreshWindowMillis;
+
+    // 等待刷新有效期的token
+    private final Set<String> pendingRefresh = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public TokenSessionCache(StringRedisTemplate stringRedisTemplate,
+                             RedisMessageListenerContainer listenerContainer,
+                             @Value("${hmdp.login.local-size:10000}") int localSize,
+                             @Value("${hmdp.login.local-ttl:30}") long localTtlSeconds,
+                             @Value("${hmdp.login.refresh-window:60}") long refreshWindowSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.sessions = new LocalCache(localSize, TimeUnit.SECONDS.toMillis(localTtlSeconds));
+        this.lastRefreshTimes = CacheUtil.newLRUCache(localSize);
+        this.refreshWindowMillis = TimeUnit.SECONDS.toMillis(refreshWindowSeconds);
+        // 訂閱失效通知, 清除本節點的登入緩存
+        listenerContainer.addMessageListener(
+                (message, pattern) -> onInvalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(LOGIN_INVALIDATE_CHANNEL));
+        refreshExecutor.scheduleWithFixedDelay(this::flushRefresh, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdown();
+        flushRefresh();
+    }
+
+    /**
+     * 根據token查詢登入用戶
+     * @return 登入用戶, token不存在或已過期返回null
+     */
+    public UserDTO get(String token) {
+        // 1.先查本地緩存
+        Object local = sessions.get(token);
+        UserDTO userDTO;
+        if (local != null) {
+            userDTO = (UserDTO) local;
+        } else {
+            // 2.本地未命中, 查詢Redis
+            Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(LOGIN_USER_KEY + token);
+            if (userMap.isEmpty()) {
+                // 無效的token不緩存, 避免被隨機token塞滿
+                return null;
+            }
+            userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+            sessions.put(token, userDTO);
+        }
+        // 3.刷新token有效期
+        touch(token);
+        return userDTO;
+    }
+
+    private void touch(String token) {
+        long now = System.currentTimeMillis();
+        Long last = lastRefreshTimes.get(token, false);
+        if (last != null && now - last < refreshWindowMillis) {
+            return;
+        }
+        lastRefreshTimes.put(token, now);
+        pendingRefresh.add(token);
+    }
+
+    private void flushRefresh() {
+        if (pendingRefresh.isEmpty()) {
+            return;
+        }
+        try {
+            List<String> tokens = new ArrayList<>(Math.min(pendingRefresh.size(), EXPIRE_BATCH_SIZE));
+            Iterator<String> iterator = pendingRefresh.iterator();
+            while (iterator.hasNext()) {
+                tokens.add(iterator.next());
+                iterator.remove();
+                if (tokens.size() == EXPIRE_BATCH_SIZE || !iterator.hasNext()) {
+                    expire(tokens);
+                    tokens.clear();
+                }
+            }
+        } catch (Exception e) {
+            log.error("刷新token有效期異常", e);
+        }
+    }
+
+    private void expire(List<String> tokens) {
+        long seconds = TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String token : tokens) {
+                connection.keyCommands().expire((LOGIN_USER_KEY + token).getBytes(StandardCharsets.UTF_8), seconds);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * token失效(登出), 通知所有節點
+     */
+    public void invalidate(String token) {
+        stringRedisTemplate.convertAndSend(LOGIN_INVALIDATE_CHANNEL, TOKEN_MESSAGE_PREFIX + token);
+        invalidateLocal(token);
+    }
+
+    /**
+     * 用戶信息修改後, 清除所有節點中該用戶的登入緩存, 下次請求重新從Redis讀取
+     */
+    public void invalidateUser(Long userId) {
+        stringRedisTemplate.convertAndSend(LOGIN_INVALIDATE_CHANNEL, USER_MESSAGE_PREFIX + userId);
+        invalidateLocalUser(userId);
+    }
+
+    private void onInvalidate(String message) {
+        if (message.startsWith(TOKEN_MESSAGE_PREFIX)) {
+            invalidateLocal(message.substring(TOKEN_MESSAGE_PREFIX.length()));
+        } else if (message.startsWith(USER_MESSAGE_PREFIX)) {
+            invalidateLocalUser(Long.valueOf(message.substring(USER_MESSAGE_PREFIX.length())));
+        }
+    }
+
+    private void invalidateLocal(String token) {
+        sessions.invalidate(token);
+        lastRefreshTimes.remove(token);
+        pendingRefresh.remove(token);
+    }
+
+    private void invalidateLocalUser(Long userId) {
+        sessions.invalidateIf(value -> value instanceof UserDTO && userId.equals(((UserDTO) value).getId()));
+    }
+}
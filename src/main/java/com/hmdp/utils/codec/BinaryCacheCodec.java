@@ -0,0 +1,175 @@
+package com.hmdp.utils.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * 緊湊的二進位序列化, 子類按固定順序寫入/讀取各個字段
+ * <p>
+ * 格式: 魔數(1字節) + 版本(1字節) + 字段. 數字使用變長編碼, 每個字段前有一個字節標記是否為null
+ * </p>
+ */
+public abstract class BinaryCacheCodec<T> implements CacheCodec<T> {
+
+    /**
+     * 二進位格式的第一個字節, JSON一定以 '{' 開頭, 所以不會衝突
+     */
+    public static final byte MAGIC = (byte) 0xB1;
+
+    private final byte version;
+
+    protected BinaryCacheCodec(int version) {
+        this.version = (byte) version;
+    }
+
+    public static boolean isBinary(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return bytes.length > 1 && bytes[0] == MAGIC && bytes[1] == version;
+    }
+
+    @Override
+    public byte[] encode(T value) {
+        Writer writer = new Writer();
+        writer.out.write(MAGIC);
+        writer.out.write(version);
+        write(writer, value);
+        return writer.out.toByteArray();
+    }
+
+    @Override
+    public T decode(byte[] bytes) {
+        if (!supports(bytes)) {
+            throw new IllegalArgumentException("不支持的緩存格式");
+        }
+        return read(new Reader(bytes, 2));
+    }
+
+    protected abstract void write(Writer writer, T value);
+
+    protected abstract T read(Reader reader);
+
+    protected static class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+
+        public void writeLong(Long value) {
+            if (writeNull(value)) {
+                return;
+            }
+            writeVarLong(value);
+        }
+
+        public void writeInt(Integer value) {
+            if (writeNull(value)) {
+                return;
+            }
+            writeVarLong(value);
+        }
+
+        public void writeDouble(Double value) {
+            if (writeNull(value)) {
+                return;
+            }
+            long bits = Double.doubleToLongBits(value);
+            for (int i = 7; i >= 0; i--) {
+                out.write((int) (bits >>> (i * 8)));
+            }
+        }
+
+        public void writeString(String value) {
+            if (writeNull(value)) {
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        public void writeDateTime(LocalDateTime value) {
+            if (writeNull(value)) {
+                return;
+            }
+            // 資料庫時間精確到秒, 只保存秒數
+            writeVarLong(value.toEpochSecond(ZoneOffset.UTC));
+        }
+
+        private boolean writeNull(Object value) {
+            out.write(value == null ? 0 : 1);
+            return value == null;
+        }
+
+        private void writeVarLong(long value) {
+            // zigzag, 讓負數也能用較少字節
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+    }
+
+    protected static class Reader {
+        private final byte[] bytes;
+        private int pos;
+
+        Reader(byte[] bytes, int pos) {
+            this.bytes = bytes;
+            this.pos = pos;
+        }
+
+        public Long readLong() {
+            return isNull() ? null : readVarLong();
+        }
+
+        public Integer readInt() {
+            return isNull() ? null : (int) readVarLong();
+        }
+
+        public Double readDouble() {
+            if (isNull()) {
+                return null;
+            }
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (bytes[pos++] & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        public String readString() {
+            if (isNull()) {
+                return null;
+            }
+            int length = (int) readVarLong();
+            String value = new String(bytes, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        public LocalDateTime readDateTime() {
+            return isNull() ? null : LocalDateTime.ofEpochSecond(readVarLong(), 0, ZoneOffset.UTC);
+        }
+
+        private boolean isNull() {
+            return bytes[pos++] == 0;
+        }
+
+        private long readVarLong() {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.hmdp.utils.codec;
+
+import com.hmdp.entity.Blog;
+
+/**
+ * Blog 的二進位序列化, 作者信息和是否點讚因人而異, 不寫入緩存
+ */
+public class BlogCodec extends BinaryCacheCodec<Blog> {
+
+    public BlogCodec() {
+        super(1);
+    }
+
+    @Override
+    protected void write(Writer writer, Blog blog) {
+        writer.writeLong(blog.getId());
+        writer.writeLong(blog.getShopId());
+        writer.writeLong(blog.getUserId());
+        writer.writeString(blog.getTitle());
+        writer.writeString(blog.getImages());
+        writer.writeString(blog.getContent());
+        writer.writeInt(blog.getLiked());
+        writer.writeInt(blog.getComments());
+        writer.writeDateTime(blog.getCreateTime());
+        writer.writeDateTime(blog.getUpdateTime());
+    }
+
+    @Override
+    protected Blog read(Reader reader) {
+        return new Blog()
+                .setId(reader.readLong())
+                .setShopId(reader.readLong())
+                .setUserId(reader.readLong())
+                .setTitle(reader.readString())
+                .setImages(reader.readString())
+                .setContent(reader.readString())
+                .setLiked(reader.readInt())
+                .setComments(reader.readInt())
+                .setCreateTime(reader.readDateTime())
+                .setUpdateTime(reader.readDateTime());
+    }
+}
@@ -0,0 +1,29 @@
+package com.hmdp.utils.codec;
+
+/**
+ * 緩存值的序列化方式
+ * @param <T> 緩存的對象類型
+ */
+public interface CacheCodec<T> {
+
+    /**
+     * 序列化
+     * @param value 要寫入緩存的對象, 不為null
+     * @return 寫入Redis的字節
+     */
+    byte[] encode(T value);
+
+    /**
+     * 反序列化
+     * @param bytes Redis中讀出的字節, 不為空
+     * @return 對象
+     */
+    T decode(byte[] bytes);
+
+    /**
+     * 這些字節是否是本codec寫入的格式
+     */
+    default boolean supports(byte[] bytes) {
+        return true;
+    }
+}
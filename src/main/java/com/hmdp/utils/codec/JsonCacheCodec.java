@@ -0,0 +1,27 @@
+package com.hmdp.utils.codec;
+
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 基於 Hutool JSON 的序列化, 與原本寫入Redis的格式相同
+ */
+public class JsonCacheCodec<T> implements CacheCodec<T> {
+
+    private final Class<T> type;
+
+    public JsonCacheCodec(Class<T> type) {
+        this.type = type;
+    }
+
+    @Override
+    public byte[] encode(T value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public T decode(byte[] bytes) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+}
@@ -0,0 +1,52 @@
+package com.hmdp.utils.codec;
+
+import com.hmdp.entity.Shop;
+
+/**
+ * Shop 的二進位序列化, distance 是查詢時計算的, 不寫入緩存
+ */
+public class ShopCodec extends BinaryCacheCodec<Shop> {
+
+    public ShopCodec() {
+        super(1);
+    }
+
+    @Override
+    protected void write(Writer writer, Shop shop) {
+        writer.writeLong(shop.getId());
+        writer.writeString(shop.getName());
+        writer.writeLong(shop.getTypeId());
+        writer.writeString(shop.getImages());
+        writer.writeString(shop.getArea());
+        writer.writeString(shop.getAddress());
+        writer.writeDouble(shop.getX());
+        writer.writeDouble(shop.getY());
+        writer.writeLong(shop.getAvgPrice());
+        writer.writeInt(shop.getSold());
+        writer.writeInt(shop.getComments());
+        writer.writeInt(shop.getScore());
+        writer.writeString(shop.getOpenHours());
+        writer.writeDateTime(shop.getCreateTime());
+        writer.writeDateTime(shop.getUpdateTime());
+    }
+
+    @Override
+    protected Shop read(Reader reader) {
+        return new Shop()
+                .setId(reader.readLong())
+                .setName(reader.readString())
+                .setTypeId(reader.readLong())
+                .setImages(reader.readString())
+                .setArea(reader.readString())
+                .setAddress(reader.readString())
+                .setX(reader.readDouble())
+                .setY(reader.readDouble())
+                .setAvgPrice(reader.readLong())
+                .setSold(reader.readInt())
+                .setComments(reader.readInt())
+                .setScore(reader.readInt())
+                .setOpenHours(reader.readString())
+                .setCreateTime(reader.readDateTime())
+                .setUpdateTime(reader.readDateTime());
+    }
+}
@@ -0,0 +1,29 @@
+package com.hmdp.utils.codec;
+
+import com.hmdp.dto.UserDTO;
+
+/**
+ * UserDTO 的二進位序列化
+ */
+public class UserDTOCodec extends BinaryCacheCodec<UserDTO> {
+
+    public UserDTOCodec() {
+        super(1);
+    }
+
+    @Override
+    protected void write(Writer writer, UserDTO user) {
+        writer.writeLong(user.getId());
+        writer.writeString(user.getNickName());
+        writer.writeString(user.getIcon());
+    }
+
+    @Override
+    protected UserDTO read(Reader reader) {
+        UserDTO user = new UserDTO();
+        user.setId(reader.readLong());
+        user.setNickName(reader.readString());
+        user.setIcon(reader.readString());
+        return user;
+    }
+}
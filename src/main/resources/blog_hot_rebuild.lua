@@ -0,0 +1,19 @@
+-- 重建熱門排行榜的一批筆記, 點讚數在腳本中讀取, 和 like.lua 的修改不會交錯
+-- 1.數據key
+-- 1.1.熱門筆記排行榜
+local hotKey = KEYS[1]
+-- 1.2.點讚數 hash, field 為筆記id
+local countKey = KEYS[2]
+-- 1.3.本次重建已經寫入的筆記id
+local seenKey = KEYS[3]
+
+-- 2.參數列表: 每篇筆記三個參數 筆記id, 資料庫中的點讚數, 發佈時間帶來的加分
+for i = 1, #ARGV, 3 do
+    local blogId = ARGV[i]
+    -- 2.1.點讚數以Redis為準, 還沒有初始化時使用資料庫的值
+    local liked = tonumber(redis.call('hget', countKey, blogId)) or tonumber(ARGV[i + 1])
+    -- 2.2.直接寫入排行榜
+    redis.call('zadd', hotKey, liked + tonumber(ARGV[i + 2]), blogId)
+    redis.call('sadd', seenKey, blogId)
+end
+return #ARGV / 3
@@ -0,0 +1,10 @@
+-- 緩存key, 版本key
+local key = KEYS[1]
+local versionKey = KEYS[2]
+-- 版本key的有效期(毫秒)
+local versionTtl = ARGV[1]
+
+-- 版本加一, 之前讀取資料庫的請求都不能再寫入
+redis.call('incr', versionKey)
+redis.call('pexpire', versionKey, versionTtl)
+return redis.call('del', key)
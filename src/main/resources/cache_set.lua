@@ -0,0 +1,18 @@
+-- 緩存key, 版本key
+local key = KEYS[1]
+local versionKey = KEYS[2]
+-- 讀取資料庫之前的版本, 值, 有效期(毫秒, 0表示永不過期)
+local version = ARGV[1]
+local value = ARGV[2]
+local ttl = tonumber(ARGV[3])
+
+-- 讀取資料庫之後key被失效過, 讀到的可能是舊數據, 不寫入
+if((redis.call('get', versionKey) or '0') ~= version) then
+    return 0
+end
+if(ttl > 0) then
+    redis.call('set', key, value, 'PX', ttl)
+else
+    redis.call('set', key, value)
+end
+return 1
@@ -0,0 +1,43 @@
+-- 1.參數列表
+-- 1.1.筆記id
+local blogId = ARGV[1]
+-- 1.2.用戶id
+local userId = ARGV[2]
+-- 1.3.點讚時間戳
+local now = ARGV[3]
+
+-- 2.數據key
+-- 2.1.點讚用戶集合
+local likedKey = KEYS[1]
+-- 2.2.點讚數 hash, field 為筆記id
+local countKey = KEYS[2]
+-- 2.3.等待同步到資料庫的筆記id
+local dirtyKey = KEYS[3]
+-- 2.4.熱門筆記排行榜
+local hotKey = KEYS[4]
+
+-- 3.腳本業務
+-- 3.1.點讚數還沒有從資料庫初始化, 返回-1
+if(redis.call('hexists', countKey, blogId) == 0) then
+    return -1
+end
+-- 3.2.判斷用戶是否已經點讚 ZSCORE likedKey userId
+if(redis.call('zscore', likedKey, userId)) then
+    -- 3.3.已點讚, 取消點讚
+    redis.call('zrem', likedKey, userId)
+    redis.call('hincrby', countKey, blogId, -1)
+    redis.call('sadd', dirtyKey, blogId)
+    if(redis.call('zscore', hotKey, blogId)) then
+        redis.call('zincrby', hotKey, -1, blogId)
+    end
+    return 0
+end
+-- 3.4.未點讚, 點讚
+redis.call('zadd', likedKey, now, userId)
+redis.call('hincrby', countKey, blogId, 1)
+redis.call('sadd', dirtyKey, blogId)
+-- 3.5.排行榜分數加1, 不在排行榜中的筆記等待重建時加入
+if(redis.call('zscore', hotKey, blogId)) then
+    redis.call('zincrby', hotKey, 1, blogId)
+end
+return 1
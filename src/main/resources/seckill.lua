@@ -5,16 +5,35 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3.訂單id
 local orderId = ARGV[3]
+-- 1.4.當前時間(毫秒)
+local now = tonumber(ARGV[4])
 
 -- 2.數據key
 -- 2.1.庫存key
 local stockKey = 'seckill:stock:' .. voucherId
 -- 2.2.訂單key
 local orderKey = 'seckill:order:' .. voucherId
+-- 2.3.秒殺時間key
+local windowKey = 'seckill:window:' .. voucherId
 
 -- 3.腳本業務
+-- 3.0.判斷是否在秒殺時間內 hmget windowKey begin end
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(not window[1]) then
+    -- 秒殺時間還沒有預熱或者已經過期, 返回5
+    return 5
+end
+if(now < tonumber(window[1])) then
+    -- 秒殺尚未開始, 返回3
+    return 3
+end
+if(now > tonumber(window[2])) then
+    -- 秒殺已經結束, 返回4
+    return 4
+end
 -- 3.1.判斷庫存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+local stock = tonumber(redis.call('get', stockKey))
+if(stock == nil or stock <= 0) then
     -- 3.2.庫存不足, 返回1
     return 1
 end
@@ -0,0 +1,54 @@
+-- 分片庫存的秒殺腳本, 四個key帶有相同的hash tag, 在Redis Cluster中位於同一個slot
+-- 1.參數列表
+-- 1.1.用戶id
+local userId = ARGV[1]
+-- 1.2.當前時間(毫秒)
+local now = tonumber(ARGV[2])
+-- 1.3.優惠眷id
+local voucherId = ARGV[3]
+-- 1.4.訂單id
+local orderId = ARGV[4]
+
+-- 2.數據key
+-- 2.1.分片的庫存key
+local stockKey = KEYS[1]
+-- 2.2.分片的訂單key
+local orderKey = KEYS[2]
+-- 2.3.分片的秒殺時間key
+local windowKey = KEYS[3]
+-- 2.4.分片的訂單隊列
+local streamKey = KEYS[4]
+
+-- 3.腳本業務
+-- 3.0.判斷是否在秒殺時間內 hmget windowKey begin end
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(not window[1]) then
+    -- 秒殺時間還沒有預熱或者已經過期, 返回5
+    return 5
+end
+if(now < tonumber(window[1])) then
+    -- 秒殺尚未開始, 返回3
+    return 3
+end
+if(now > tonumber(window[2])) then
+    -- 秒殺已經結束, 返回4
+    return 4
+end
+-- 3.1.用戶總是路由到同一個分片, 判斷用戶是否下單 SISMEMBER orderKey userId
+if(redis.call('sismember', orderKey, userId) == 1) then
+    -- 存在, 說明是重複下單, 返回2
+    return 2
+end
+-- 3.2.判斷分片庫存是否充足
+local stock = tonumber(redis.call('get', stockKey))
+if(stock == nil or stock <= 0) then
+    -- 分片庫存不足, 返回1, 由調用方從其他分片調撥庫存
+    return 1
+end
+-- 3.3.扣庫存 incrby stockKey -1
+redis.call('incrby', stockKey, -1)
+-- 3.4.下單(保存用戶)sadd orderKey uesrId
+redis.call('sadd', orderKey, userId)
+-- 3.5.發送消息到分片的訂單隊列, 和扣庫存在同一個原子操作中
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
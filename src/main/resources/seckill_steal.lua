@@ -0,0 +1,17 @@
+-- 從一個分片調出一半庫存, 返回實際調出的數量
+-- 調出的數量記錄在同一個slot的調撥記錄中, 調入完成後刪除, 未完成的調撥由定時任務補完
+local stockKey = KEYS[1]
+local transferKey = KEYS[2]
+-- 調撥id, 調入的分片, 當前時間(毫秒)
+local transferId = ARGV[1]
+local home = ARGV[2]
+local now = ARGV[3]
+
+local stock = tonumber(redis.call('get', stockKey))
+if(stock == nil or stock <= 0) then
+    return 0
+end
+local take = math.ceil(stock / 2)
+redis.call('incrby', stockKey, -take)
+redis.call('hset', transferKey, transferId, home .. ':' .. take .. ':' .. now)
+return take
@@ -0,0 +1,12 @@
+-- 把調出的庫存加到調入的分片, 同一個調撥只加一次, 返回1表示本次加入
+local stockKey = KEYS[1]
+local appliedKey = KEYS[2]
+-- 調撥id, 數量
+local transferId = ARGV[1]
+local amount = ARGV[2]
+
+if(redis.call('sadd', appliedKey, transferId) == 0) then
+    return 0
+end
+redis.call('incrby', stockKey, amount)
+return 1
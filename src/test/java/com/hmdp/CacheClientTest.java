@@ -0,0 +1,84 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+class CacheClientTest {
+
+    // 測試專用的前綴, 開啟本地緩存, 不影響店鋪緩存
+    private static final String KEY_PREFIX = "cache:test:";
+    private static final Long ID = 1L;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @BeforeEach
+    void setUp() {
+        cacheClient.enableLocalCache(KEY_PREFIX, 100, 60L, TimeUnit.SECONDS);
+        cacheClient.delete(KEY_PREFIX + ID);
+    }
+
+    @AfterEach
+    void tearDown() {
+        cacheClient.delete(KEY_PREFIX + ID);
+    }
+
+    @Test
+    void testLogicalExpireWithEmptyValue() {
+        // 1.Redis中是空值, 例如 queryWithPassThrough 寫入的
+        stringRedisTemplate.opsForValue().set(KEY_PREFIX + ID, "");
+        // 2.批量查詢後再單個查詢, 都返回null, 不會因為本地緩存的空值轉型失敗
+        List<Shop> shops = cacheClient.queryBatchWithLogicalExpire(KEY_PREFIX, Collections.singletonList(ID), Shop.class,
+                ids -> Collections.emptyMap(), 10L, TimeUnit.SECONDS);
+        assertTrue(shops.isEmpty());
+        assertNull(cacheClient.queryWithLogicalExpire(KEY_PREFIX, ID, Shop.class, id -> null, 10L, TimeUnit.SECONDS));
+        // 3.queryWithPassThrough 在本地緩存了空值, 邏輯過期查詢也能返回null
+        assertNull(cacheClient.queryWithPassThrough(KEY_PREFIX, ID, Shop.class, id -> null, 10L, TimeUnit.SECONDS));
+        assertNull(cacheClient.queryWithLogicalExpire(KEY_PREFIX, ID, Shop.class, id -> null, 10L, TimeUnit.SECONDS));
+        shops = cacheClient.queryBatchWithLogicalExpire(KEY_PREFIX, Collections.singletonList(ID), Shop.class,
+                ids -> Collections.emptyMap(), 10L, TimeUnit.SECONDS);
+        assertTrue(shops.isEmpty());
+    }
+
+    @Test
+    void testDeleteDuringPassThroughRejectsStaleWrite() {
+        String key = KEY_PREFIX + ID;
+        long rejected = cacheClient.getStaleWriteRejectedCount();
+        // 1.查詢資料庫期間, 更新提交並刪除緩存, 查到的是舊數據
+        Shop stale = cacheClient.queryWithPassThrough(KEY_PREFIX, ID, Shop.class, id -> {
+            cacheClient.delete(key);
+            return new Shop().setId(id).setName("舊名稱");
+        }, 10L, TimeUnit.SECONDS);
+        // 2.本次請求仍然返回查到的數據, 但不寫回Redis
+        assertEquals("舊名稱", stale.getName());
+        assertEquals(rejected + 1, cacheClient.getStaleWriteRejectedCount());
+        assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey(key)));
+        // 3.批量查詢同樣不寫回
+        List<Shop> shops = cacheClient.queryBatch(KEY_PREFIX, Collections.singletonList(ID), Shop.class, ids -> {
+            cacheClient.delete(key);
+            return Collections.singletonMap(ID, new Shop().setId(ID).setName("舊名稱"));
+        }, 10L, TimeUnit.SECONDS);
+        assertEquals(1, shops.size());
+        assertEquals(rejected + 2, cacheClient.getStaleWriteRejectedCount());
+        assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey(key)));
+    }
+}
@@ -0,0 +1,54 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.codec.CacheCodec;
+import com.hmdp.utils.codec.JsonCacheCodec;
+import com.hmdp.utils.codec.ShopCodec;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CacheCodecTest {
+
+    private final CacheCodec<Shop> jsonCodec = new JsonCacheCodec<>(Shop.class);
+    private final CacheCodec<Shop> binaryCodec = new ShopCodec();
+
+    @Test
+    void testRoundTrip() {
+        Shop shop = newShop();
+        assertEquals(shop, binaryCodec.decode(binaryCodec.encode(shop)));
+        assertEquals(shop, jsonCodec.decode(jsonCodec.encode(shop)));
+        // 空字段也能還原
+        Shop empty = new Shop().setId(2L);
+        assertEquals(empty, binaryCodec.decode(binaryCodec.encode(empty)));
+    }
+
+    @Test
+    void testBinaryIsSmallerThanJson() {
+        Shop shop = newShop();
+        assertTrue(binaryCodec.encode(shop).length < jsonCodec.encode(shop).length);
+    }
+
+    private Shop newShop() {
+        // 取自 hmdp.sql 中的第一家店鋪
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+}